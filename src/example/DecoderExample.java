@@ -3,15 +3,12 @@ package example;
 import jp.sourceforge.qrcode.DecodeResult;
 import jp.sourceforge.qrcode.Decoder;
 import jp.sourceforge.qrcode.QRCodeDecoder;
-import jp.sourceforge.qrcode.QRImage;
 import jp.sourceforge.qrcode.data.QRCodeSymbol;
 import jp.sourceforge.qrcode.util.DebugCanvasAdapter;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Path;
 
 public class DecoderExample {
     public static void main(String[] args) {
@@ -22,13 +19,12 @@ public class DecoderExample {
         Decoder decoder = new Decoder();
         for (String filename : args) {
             try {
-                BufferedImage image;
+                byte[] result;
                 if (filename.matches("https?://.*")) {
-                    image = ImageIO.read(new URL(filename));
+                    result = decoder.decodeImage(new URL(filename));
                 } else {
-                    image = ImageIO.read(new File(filename));
+                    result = decoder.decodeImage(Path.of(filename));
                 }
-                byte[] result = decoder.decodeImage(new QRImage(image));
                 String decodedText = new String(result);
                 System.out.println(decodedText);
             } catch (IOException e) {
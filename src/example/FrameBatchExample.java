@@ -0,0 +1,49 @@
+package example;
+
+import jp.sourceforge.qrcode.Decoder;
+import jp.sourceforge.qrcode.GrayFrameLoader;
+import jp.sourceforge.qrcode.data.DecoderWorkspace;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Decodes every PGM or headerless Y8 frame of a directory,
+ * the frames being mapped rather than read into the heap
+ */
+public class FrameBatchExample {
+    public static void main(String[] args) {
+        if (args.length != 1 && args.length != 3) {
+            System.err.println("please pass a directory of frames, and the size of headerless frames if any");
+            System.err.println("e.g java -cp qrcode.jar example.FrameBatchExample frames/ 2048 1536");
+            System.exit(1);
+        }
+        GrayFrameLoader loader = args.length == 3 ?
+                new GrayFrameLoader(Integer.parseInt(args[1]), Integer.parseInt(args[2])) :
+                new GrayFrameLoader();
+        Decoder decoder = new Decoder();
+        // the frames share their buffers instead of allocating them per frame
+        decoder.setWorkspace(new DecoderWorkspace());
+        int numSuccesses = 0;
+        int numFailures = 0;
+        long start = System.currentTimeMillis();
+        try {
+            for (Path frame : loader.list(Path.of(args[0]))) {
+                try {
+                    String decodedText = new String(decoder.decodeImage(loader.map(frame)));
+                    System.out.println(frame.getFileName() + "\t" + decodedText);
+                    numSuccesses++;
+                } catch (IOException | IllegalArgumentException e) {
+                    System.err.println("[Failure] " + frame.getFileName() + ": " + e.getMessage());
+                    numFailures++;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: Couldn't list " + args[0]);
+            System.exit(1);
+        }
+        long processTime = System.currentTimeMillis() - start;
+        System.err.println("Processed " + (numSuccesses + numFailures) + " frames in " + processTime + "ms");
+        System.err.println("OK: " + numSuccesses + " NG: " + numFailures);
+    }
+}
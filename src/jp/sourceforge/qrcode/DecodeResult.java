@@ -1,14 +1,22 @@
 package jp.sourceforge.qrcode;
 
+import jp.sourceforge.qrcode.geom.Point;
+
 import java.nio.charset.Charset;
 
 public class DecodeResult {
     private final int numCorrectionFailures;
     private final byte[] decodedBytes;
+    private final Point[] finderPatternCenters;
 
     public DecodeResult(byte[] decodedBytes, int numCorrectionFailures) {
+        this(decodedBytes, numCorrectionFailures, null);
+    }
+
+    public DecodeResult(byte[] decodedBytes, int numCorrectionFailures, Point[] finderPatternCenters) {
         this.decodedBytes = decodedBytes;
         this.numCorrectionFailures = numCorrectionFailures;
+        this.finderPatternCenters = finderPatternCenters;
     }
 
     public byte[] getDecodedBytes() {
@@ -19,6 +27,15 @@ public class DecodeResult {
         return this.numCorrectionFailures;
     }
 
+    /**
+     * Returns the centers of the UL, UR and DL finder patterns in the coordinates
+     * of the whole image, even when only a region of it was decoded,
+     * or null when unknown
+     */
+    public Point[] getFinderPatternCenters() {
+        return this.finderPatternCenters;
+    }
+
     public String getDecodedText() {
         return new String(this.decodedBytes, Charset.defaultCharset());
     }
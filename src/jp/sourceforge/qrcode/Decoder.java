@@ -1,13 +1,17 @@
 package jp.sourceforge.qrcode;
 
+import jp.sourceforge.qrcode.data.DecoderWorkspace;
 import jp.sourceforge.qrcode.data.QRCodeImage;
 import jp.sourceforge.qrcode.data.QRCodeSymbol;
 import jp.sourceforge.qrcode.ecc.RsDecode;
 import jp.sourceforge.qrcode.exception.DecodingFailedException;
 import jp.sourceforge.qrcode.exception.InvalidDataBlockException;
 import jp.sourceforge.qrcode.exception.SymbolNotFoundException;
+import jp.sourceforge.qrcode.exception.VersionInformationException;
 import jp.sourceforge.qrcode.geom.Point;
 import jp.sourceforge.qrcode.reader.QRCodeDataBlockReader;
+import jp.sourceforge.qrcode.reader.AreaBinarizer;
+import jp.sourceforge.qrcode.reader.Binarizer;
 import jp.sourceforge.qrcode.reader.QRCodeImageReader;
 import jp.sourceforge.qrcode.util.DebugCanvas;
 import jp.sourceforge.qrcode.util.DebugCanvasAdapter;
@@ -17,14 +21,24 @@ import javax.imageio.ImageReader;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.URL;
+import java.nio.file.Path;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.spi.AbstractResourceBundleProvider;
 
 public class Decoder {
 
     QRCodeSymbol qrCodeSymbol;
-    int[][] intImage;
     QRCodeImageReader imageReader;
+    Binarizer binarizer = new AreaBinarizer();
+    DecoderWorkspace workspace;
+    ForkJoinPool pool;
+    int minModuleSize;
+    boolean templateAlignment;
+    boolean speculativeAdjustment;
+    long pixelBudget = QRImageLoader.DEFAULT_PIXEL_BUDGET;
 
     int numDecodeAttempts;
     Vector<DecodeResult> results;
@@ -49,29 +63,246 @@ public class Decoder {
         this.results = new Vector<>();
     }
 
+    /**
+     * Sets the maximum number of pixels of the images read from streams, files and URLs,
+     * larger images being subsampled while they are read
+     */
+    public void setPixelBudget(long pixelBudget) {
+        if (pixelBudget < 1)
+            throw new IllegalArgumentException("Pixel budget must be greater than 0");
+        this.pixelBudget = pixelBudget;
+    }
+
+    /**
+     * Sets the binarizer applied to the images to decode,
+     * an {@link AreaBinarizer} by default
+     */
+    public void setBinarizer(Binarizer binarizer) {
+        this.binarizer = binarizer;
+    }
+
+    /**
+     * Sets the workspace whose buffers are reused from one decoding to the next,
+     * null to allocate them for each decoding as by default.
+     * A workspace must not be shared with a decoder running on another thread.
+     */
+    public void setWorkspace(DecoderWorkspace workspace) {
+        this.workspace = workspace;
+    }
+
+    /**
+     * Sets the pool on which the symbols found by {@link #getDecodeResults} are decoded
+     * at the same time, and the alignment patterns of large symbols refined
+     * (see {@link QRCodeImageReader#setPool}), null to do both one after the other as by default
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the smallest module size of the symbols to decode, in pixels of the image,
+     * letting the search for finder patterns skip rows and columns; 0, the default,
+     * searches all of them. See {@link QRCodeImageReader#setMinModuleSize}.
+     */
+    public void setMinModuleSize(int minModuleSize) {
+        if (minModuleSize < 0)
+            throw new IllegalArgumentException("Minimum module size must not be negative");
+        this.minModuleSize = minModuleSize;
+    }
+
+    /**
+     * Sets whether alignment patterns are located by template matching on the luminance
+     * rather than by following edges of the bitmap, the default.
+     * See {@link QRCodeImageReader#setTemplateAlignment}.
+     */
+    public void setTemplateAlignment(boolean templateAlignment) {
+        this.templateAlignment = templateAlignment;
+    }
+
+    /**
+     * Sets whether the adjusted sampling grids of a symbol are all tried at the same time
+     * on the pool rather than one after the other, the default. The result is the same:
+     * the first grid in order whose blocks are all corrected, else the one leaving the fewest
+     * uncorrected blocks. Attempts not started when one succeeds are skipped.
+     * Without a pool, and for the symbols of {@link #getDecodeResults}, it has no effect.
+     */
+    public void setSpeculativeAdjustment(boolean speculativeAdjustment) {
+        this.speculativeAdjustment = speculativeAdjustment;
+    }
+
     public byte[] decodeImage(URL imageUrl) throws IOException {
-        BufferedImage image = ImageIO.read(imageUrl);
-        return decodeImage(new QRImage(image));
+        try (InputStream in = imageUrl.openStream()) {
+            return decodeImage(in);
+        }
+    }
+
+    /**
+     * Reads and decodes an image, subsampled down to the pixel budget
+     * and read as gray pixels when the format allows it
+     */
+    public byte[] decodeImage(InputStream in) throws IOException {
+        return decodeImage(new QRImageLoader(pixelBudget).load(in));
+    }
+
+    /**
+     * Reads and decodes an image file, subsampled down to the pixel budget
+     * and read as gray pixels when the format allows it
+     */
+    public byte[] decodeImage(Path path) throws IOException {
+        return decodeImage(new QRImageLoader(pixelBudget).load(path));
     }
 
     public byte[] decodeImage(QRCodeImage qrCodeImage) throws DecodingFailedException {
-        Point[] adjusts = getAdjustPoints();
+        return getDecodeResult(qrCodeImage).getDecodedBytes();
+    }
+
+    /**
+     * Decodes the symbol inside a rectangle of the image, clipped to the image.
+     * Nothing outside the rectangle is converted or scanned.
+     */
+    public byte[] decodeImage(QRCodeImage qrCodeImage, int x, int y, int width, int height)
+            throws DecodingFailedException {
+        return getDecodeResult(qrCodeImage, x, y, width, height).getDecodedBytes();
+    }
+
+    public DecodeResult getDecodeResult(QRCodeImage qrCodeImage) throws DecodingFailedException {
+        imageReader = new QRCodeImageReader(binarizer,
+                workspace != null ? workspace : new DecoderWorkspace());
+        imageReader.setMinModuleSize(minModuleSize);
+        imageReader.setTemplateAlignment(templateAlignment);
+        imageReader.setPool(pool);
+        qrCodeSymbol = imageReader.getQRCodeSymbol(qrCodeImage);
+        return decodeSymbol(qrCodeImage);
+    }
+
+    /**
+     * Decodes the symbol inside a rectangle of the image, clipped to the image.
+     * The finder pattern centers of the result are in the coordinates of the whole image.
+     */
+    public DecodeResult getDecodeResult(QRCodeImage qrCodeImage, int x, int y, int width, int height)
+            throws DecodingFailedException {
+        imageReader = new QRCodeImageReader(binarizer,
+                workspace != null ? workspace : new DecoderWorkspace());
+        imageReader.setMinModuleSize(minModuleSize);
+        imageReader.setTemplateAlignment(templateAlignment);
+        imageReader.setPool(pool);
+        qrCodeSymbol = imageReader.getQRCodeSymbol(qrCodeImage, x, y, width, height);
+        return decodeSymbol(qrCodeImage);
+    }
+
+    /**
+     * Decodes all the symbols of the image, each result holding the finder pattern centers
+     * that locate its symbol. The image is binarized and scanned once, whole, then the
+     * symbols are sampled and corrected each on its own, at the same time when a pool is set.
+     * Symbols that cannot be decoded are left out.
+     *
+     * @throws DecodingFailedException when no symbol can be decoded
+     */
+    public DecodeResult[] getDecodeResults(QRCodeImage qrCodeImage) throws DecodingFailedException {
+        imageReader = new QRCodeImageReader(binarizer,
+                workspace != null ? workspace : new DecoderWorkspace());
+        imageReader.setMinModuleSize(minModuleSize);
+        imageReader.setTemplateAlignment(templateAlignment);
+        imageReader.setPool(pool);
+        QRCodeImageReader[] symbolReaders = imageReader.getSymbolReaders(qrCodeImage);
+        DecodeResult[] decoded = new DecodeResult[symbolReaders.length];
+        if (pool == null) {
+            for (int i = 0; i < symbolReaders.length; i++)
+                decoded[i] = decodeSymbol(qrCodeImage, symbolReaders[i]);
+        } else {
+            Vector<ForkJoinTask<DecodeResult>> tasks = new Vector<>();
+            for (QRCodeImageReader symbolReader : symbolReaders)
+                tasks.add(pool.submit(() -> decodeSymbol(qrCodeImage, symbolReader)));
+            for (int i = 0; i < symbolReaders.length; i++)
+                decoded[i] = tasks.get(i).join();
+        }
+
+        Vector<DecodeResult> results = new Vector<>();
+        for (DecodeResult result : decoded) {
+            if (result != null)
+                results.add(result);
+        }
+        if (results.isEmpty())
+            throw new DecodingFailedException("No symbol could be decoded");
+        return results.toArray(new DecodeResult[0]);
+    }
+
+    // each symbol is decoded by a decoder of its own, as a decoder keeps the state of its symbol
+    private DecodeResult decodeSymbol(QRCodeImage qrCodeImage, QRCodeImageReader symbolReader) {
+        Decoder symbolDecoder = new Decoder();
+        symbolDecoder.imageReader = symbolReader;
+        try {
+            symbolDecoder.qrCodeSymbol = symbolReader.getQRCodeSymbol();
+            return symbolDecoder.decodeSymbol(qrCodeImage);
+        } catch (SymbolNotFoundException | VersionInformationException | DecodingFailedException e) {
+            canvas.println("Symbol at " + symbolReader.getFinderPatternCenters()[0] + " skipped: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private DecodeResult decodeSymbol(QRCodeImage qrCodeImage) throws DecodingFailedException {
+        Point[] offsets = getAdjustOffsets();
+        if (speculativeAdjustment && pool != null)
+            return decodeSymbolSpeculatively(qrCodeImage, offsets);
         Vector<DecodeResult> results = new Vector<>();
 
-        intImage = imageToIntArray(qrCodeImage);
-        imageReader = new QRCodeImageReader();
-        qrCodeSymbol = imageReader.getQRCodeSymbol((intImage));
-        System.out.println("Decoding started");
-        for (Point adjust : adjusts) {
-            DecodeResult result = decode(qrCodeImage, adjust);
+        canvas.println("Decoding started");
+        for (Point offset : offsets) {
+            DecodeResult result = decode(qrCodeImage, offset, imageReader.getWorkspace());
             if (result.isCorrectionSucceeded()) {
-                return result.getDecodedBytes();
+                return result;
             } else {
                 // decoding succeeses, but could not correct errors
                 results.add(result);
                 // retry...
             }
         }
+        return getBestAttempt(results);
+    }
+
+    /*
+     * Tries all the offsets on the pool, each attempt with a decoder and a workspace of its own,
+     * the workspaces kept with that of the reader to be reused,
+     * then goes through them in order as the loop above does, so that the same attempt wins
+     * and the same failure is thrown whatever order they end in
+     */
+    private DecodeResult decodeSymbolSpeculatively(QRCodeImage qrCodeImage, Point[] offsets)
+            throws DecodingFailedException {
+        AtomicInteger firstSucceeded = new AtomicInteger(offsets.length);
+        Vector<ForkJoinTask<DecodeResult>> tasks = new Vector<>();
+        for (int i = 0; i < offsets.length; i++) {
+            int index = i;
+            DecoderWorkspace attemptWorkspace = imageReader.getWorkspace().getAttemptWorkspace(i);
+            tasks.add(pool.submit(() -> {
+                // no use trying once an earlier offset has succeeded
+                if (firstSucceeded.get() < index)
+                    return null;
+                Decoder attemptDecoder = new Decoder();
+                attemptDecoder.imageReader = imageReader;
+                DecodeResult result = attemptDecoder.decode(qrCodeImage, offsets[index], attemptWorkspace);
+                if (result.isCorrectionSucceeded())
+                    firstSucceeded.accumulateAndGet(index, Math::min);
+                return result;
+            }));
+        }
+
+        canvas.println("Decoding started");
+        Vector<DecodeResult> results = new Vector<>();
+        try {
+            for (ForkJoinTask<DecodeResult> task : tasks) {
+                DecodeResult result = task.join();
+                if (result.isCorrectionSucceeded())
+                    return result;
+                results.add(result);
+            }
+        } finally {
+            for (ForkJoinTask<DecodeResult> task : tasks)
+                task.cancel(false);
+        }
+        return getBestAttempt(results);
+    }
+
+    private DecodeResult getBestAttempt(Vector<DecodeResult> results) throws DecodingFailedException {
         // if no attempts to decode and error correct succeeded, then decoding failed
         if (results.isEmpty()) {
             throw new DecodingFailedException("Image unrecognizable, decoding failed");
@@ -85,66 +316,50 @@ public class Decoder {
         }
         // return the best attempt at decoding,
         // i.e the attempt with the least number of correction failures
-        return bestCorrectionAttempt.getDecodedBytes();
+        return bestCorrectionAttempt;
     }
 
-    private DecodeResult decode(QRCodeImage qrCodeImage, Point adjust) {
+    private DecodeResult decode(QRCodeImage qrCodeImage, Point offset, DecoderWorkspace workspace) {
         try {
-            qrCodeSymbol = imageReader.getQRCodeSymbolWithAdjustedGrid(adjust);
+            qrCodeSymbol = imageReader.getQRCodeSymbolWithGridOffset(offset, workspace);
         } catch (SymbolNotFoundException e) {
             throw new DecodingFailedException(e.getMessage());
         }
         int[] blocks = qrCodeSymbol.getBlocks();
-        blocks = correctDataBlocks(blocks);
+        blocks = correctDataBlocks(blocks, workspace);
         try {
             byte[] decodedByteArray = getDecodedByteArray(
                     blocks,
                     qrCodeSymbol.getVersion(),
                     qrCodeSymbol.getNumErrorCollectionCode());
-            return new DecodeResult(decodedByteArray, numLastCorrectionFailures);
+            return new DecodeResult(decodedByteArray, numLastCorrectionFailures,
+                    imageReader.getFinderPatternCenters());
         } catch (InvalidDataBlockException e) {
             throw new DecodingFailedException(e.getMessage());
         }
     }
 
-    private int[][] imageToIntArray(QRCodeImage image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int[][] intImage = new int[width][height];
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                intImage[x][y] = image.getPixel(x, y);
-            }
-        }
-        return intImage;
-    }
-
-    private Point[] getAdjustPoints() {
-        // note that adjusts affect dependently
-        // i.e. below means (0,0), (2,3), (3,4), (1,2), (2,1), (1,1), (-1,-1)
+    /*
+     * Returns the offsets of the sampling grid to try, in order, from where it was located
+     */
+    private Point[] getAdjustOffsets() {
+        // i.e. (1,1), (2,2), (3,3), (4,4), then (4,4) moved by (-2,0), (-3,-1), (0,-2) and (-1,-3)
 
-        Vector<Point> adjustPoints = new Vector<>();
-        for (int d = 0; d < 4; d++) {
-            adjustPoints.addElement(new Point(1, 1));
+        Vector<Point> adjustOffsets = new Vector<>();
+        for (int d = 1; d <= 4; d++) {
+            adjustOffsets.addElement(new Point(d, d));
         }
-        int lastX = 0, lastY = 0;
         for (int y = 0; y > -4; y--) {
             for (int x = 0; x > -4; x--) {
                 if (x != y && ((x + y) % 2 == 0)) {
-                    adjustPoints.addElement(new Point(x - lastX, y - lastY));
-                    lastX = x;
-                    lastY = y;
+                    adjustOffsets.addElement(new Point(4 + x, 4 + y));
                 }
             }
         }
-        Point[] adjusts = new Point[adjustPoints.size()];
-        for (int i = 0; i < adjusts.length; i++) {
-            adjusts[i] = adjustPoints.elementAt(i);
-        }
-        return adjusts;
+        return adjustOffsets.toArray(new Point[0]);
     }
 
-    private int[] correctDataBlocks(int[] blocks) {
+    private int[] correctDataBlocks(int[] blocks, DecoderWorkspace workspace) {
         int numSucceededCorrections = 0;
         int numCorrectionFailures = 0;
         int dataCapacity = qrCodeSymbol.getDataCapacity();
@@ -154,7 +369,7 @@ public class Decoder {
         int eccPerRSBlock = numErrorCollectionCode / numRSBlocks;
 
         if (numRSBlocks == 1) {
-            RsDecode corrector = new RsDecode(eccPerRSBlock / 2);
+            RsDecode corrector = workspace.getRsDecode(eccPerRSBlock / 2);
             corrector.decode(blocks);
             return blocks;
         } // else
@@ -166,7 +381,7 @@ public class Decoder {
                 for (int j = 0; j < lengthRSBlock; j++) {
                     RSBlocks[i][j] = blocks[j * numRSBlocks + i];
                 }
-                RsDecode corrector = new RsDecode(eccPerRSBlock / 2);
+                RsDecode corrector = workspace.getRsDecode(eccPerRSBlock / 2);
                 int ret = corrector.decode(RSBlocks[i]);
                 if (ret > 0) {
                     numSucceededCorrections += ret;
@@ -195,7 +410,7 @@ public class Decoder {
                         }
                         shorterRSBlocks[i][j] = blocks[j * numRSBlocks + i + mod];
                     }
-                    RsDecode corrector = new RsDecode(eccPerRSBlock / 2);
+                    RsDecode corrector = workspace.getRsDecode(eccPerRSBlock / 2);
                     int ret = corrector.decode(shorterRSBlocks[i]);
                     if (ret > 0)
                         numSucceededCorrections += ret;
@@ -209,7 +424,7 @@ public class Decoder {
                         }
                         longerRSBlocks[i - numShorterRSBlocks][j] = blocks[j * numRSBlocks + i - mod];
                     }
-                    RsDecode corrector = new RsDecode(eccPerRSBlock / 2);
+                    RsDecode corrector = workspace.getRsDecode(eccPerRSBlock / 2);
                     int ret = corrector.decode(longerRSBlocks[i - numShorterRSBlocks]);
                     if (ret > 0)
                         numSucceededCorrections += ret;
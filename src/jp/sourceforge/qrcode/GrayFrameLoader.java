@@ -0,0 +1,160 @@
+package jp.sourceforge.qrcode;
+
+import jp.sourceforge.qrcode.data.LuminanceBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps 8 bit gray frames from disk, binary PGM (P5) or headerless Y8,
+ * as {@link LuminanceBuffer}s read in place by the reader.
+ * <p>
+ * Only the bytes of the frame itself are mapped, so a frame can be taken from
+ * anywhere in a dump larger than the 2 GB a single mapping allows.
+ */
+public class GrayFrameLoader {
+    static final int MAX_HEADER_LENGTH = 1024;
+
+    final int rawWidth;
+    final int rawHeight;
+
+    /**
+     * Creates a loader for PGM files only
+     */
+    public GrayFrameLoader() {
+        this(0, 0);
+    }
+
+    /**
+     * @param rawWidth  width of the headerless frames
+     * @param rawHeight height of the headerless frames
+     */
+    public GrayFrameLoader(int rawWidth, int rawHeight) {
+        this.rawWidth = rawWidth;
+        this.rawHeight = rawHeight;
+    }
+
+    /**
+     * Maps a .pgm file, or any other file as a headerless frame of the loader's size
+     */
+    public LuminanceBuffer map(Path path) throws IOException {
+        if (isPGM(path))
+            return mapPGM(path);
+        if (rawWidth < 1 || rawHeight < 1)
+            throw new IOException("Size of headerless frames unknown: " + path);
+        return mapRaw(path, rawWidth, rawHeight, rawWidth, 0);
+    }
+
+    /**
+     * Returns the frames of a directory the loader can map, sorted by name:
+     * .pgm files, and .y8, .raw and .gray files when the loader has a frame size
+     */
+    public List<Path> list(Path directory) throws IOException {
+        List<Path> frames = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry) && (isPGM(entry) || (rawWidth > 0 && isRaw(entry))))
+                    frames.add(entry);
+            }
+        }
+        Collections.sort(frames);
+        return frames;
+    }
+
+    static boolean isPGM(Path path) {
+        return path.getFileName().toString().toLowerCase().endsWith(".pgm");
+    }
+
+    static boolean isRaw(Path path) {
+        String name = path.getFileName().toString().toLowerCase();
+        return name.endsWith(".y8") || name.endsWith(".raw") || name.endsWith(".gray");
+    }
+
+    /**
+     * Maps the pixels of a binary PGM file with a maximum value up to 255
+     */
+    public static LuminanceBuffer mapPGM(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate((int) Math.min(MAX_HEADER_LENGTH, channel.size()));
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0)
+                    break;
+            }
+            header.flip();
+            if (!"P5".equals(nextToken(header)))
+                throw new IOException("Not a binary PGM file: " + path);
+            int width = parseInt(nextToken(header), path);
+            int height = parseInt(nextToken(header), path);
+            int maxValue = parseInt(nextToken(header), path);
+            if (maxValue > 255)
+                throw new IOException("Only 8 bit PGM files are supported: " + path);
+            // a single whitespace separates the header from the pixels
+            if (!header.hasRemaining())
+                throw new IOException("Truncated PGM file: " + path);
+            header.get();
+            return map(channel, header.position(), width, height, width, path);
+        }
+    }
+
+    /**
+     * Maps a headerless 8 bit frame starting at the given byte position of the file
+     *
+     * @param stride   number of bytes from a row to the next
+     * @param position position of the first pixel in the file
+     */
+    public static LuminanceBuffer mapRaw(Path path, int width, int height, int stride, long position)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return map(channel, position, width, height, stride, path);
+        }
+    }
+
+    static LuminanceBuffer map(FileChannel channel, long position, int width, int height, int stride, Path path)
+            throws IOException {
+        if (width < 1 || height < 1 || stride < width)
+            throw new IOException("Invalid frame size " + width + "x" + height + ": " + path);
+        long size = (long) (height - 1) * stride + width;
+        if (position < 0 || position + size > channel.size())
+            throw new IOException("Frame exceeds the file: " + path);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        return new LuminanceBuffer(buffer, width, height, stride, 0);
+    }
+
+    static String nextToken(ByteBuffer header) {
+        StringBuilder token = new StringBuilder();
+        while (header.hasRemaining()) {
+            int c = header.get(header.position());
+            if (c == '#') {
+                // comment up to the end of the line
+                while (header.hasRemaining()) {
+                    if (header.get() == '\n')
+                        break;
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (token.length() > 0)
+                    break;
+                header.get();
+            } else {
+                token.append((char) header.get());
+            }
+        }
+        return token.toString();
+    }
+
+    static int parseInt(String token, Path path) throws IOException {
+        try {
+            return Integer.parseInt(token);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid PGM header: " + path);
+        }
+    }
+}
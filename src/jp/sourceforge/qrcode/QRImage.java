@@ -1,14 +1,55 @@
 package jp.sourceforge.qrcode;
 
 import jp.sourceforge.qrcode.data.QRCodeImage;
+import jp.sourceforge.qrcode.util.QRCodeUtility;
 
-import java.awt.image.BufferedImage;
+import java.awt.image.*;
 
 public class QRImage implements QRCodeImage {
     BufferedImage image;
 
+    // direct raster access for the common layouts, null for custom images
+    int[] intData;
+    byte[] byteData;
+    int dataOffset;
+    int scanlineStride;
+    int pixelStride;
+    int[] bandOffsets;
+
     public QRImage(BufferedImage i) {
         this.image = i;
+        initRasterAccess();
+    }
+
+    void initRasterAccess() {
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        int tx = -raster.getSampleModelTranslateX();
+        int ty = -raster.getSampleModelTranslateY();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+                intData = ((DataBufferInt) buffer).getData();
+                scanlineStride = sampleModel.getScanlineStride();
+                pixelStride = 1;
+                dataOffset = buffer.getOffset() + ty * scanlineStride + tx;
+                break;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+                byteData = ((DataBufferByte) buffer).getData();
+                scanlineStride = sampleModel.getScanlineStride();
+                pixelStride = sampleModel.getPixelStride();
+                dataOffset = buffer.getOffset() + ty * scanlineStride + tx * pixelStride;
+                bandOffsets = sampleModel.getBandOffsets();
+                break;
+            }
+            default:
+                // custom images are read through the color model
+        }
     }
 
     @Override
@@ -23,7 +64,79 @@ public class QRImage implements QRCodeImage {
 
     @Override
     public int getPixel(int x, int y) {
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            // the raw gray sample, as getPixels() and getLuminance() read it
+            int m = byteData[dataOffset + y * scanlineStride + x * pixelStride + bandOffsets[0]] & 0xFF;
+            return 0xFF000000 | m << 16 | m << 8 | m;
+        }
         return image.getRGB(x, y);
+    }
 
+    @Override
+    public void getPixels(int x, int y, int width, int[] pixels, int offset) {
+        int p = dataOffset + y * scanlineStride + x * pixelStride;
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+                for (int i = 0; i < width; i++)
+                    pixels[offset + i] = 0xFF000000 | intData[p + i];
+                break;
+            case BufferedImage.TYPE_INT_ARGB:
+                System.arraycopy(intData, p, pixels, offset, width);
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                int r = bandOffsets[0], g = bandOffsets[1], b = bandOffsets[2];
+                for (int i = 0; i < width; i++, p += pixelStride) {
+                    pixels[offset + i] = 0xFF000000 | (byteData[p + r] & 0xFF) << 16 |
+                            (byteData[p + g] & 0xFF) << 8 | (byteData[p + b] & 0xFF);
+                }
+                break;
+            }
+            case BufferedImage.TYPE_BYTE_GRAY:
+                // raw gray samples, without the gamma conversion getRGB() applies
+                p += bandOffsets[0];
+                for (int i = 0; i < width; i++, p += pixelStride) {
+                    int m = byteData[p] & 0xFF;
+                    pixels[offset + i] = 0xFF000000 | m << 16 | m << 8 | m;
+                }
+                break;
+            default:
+                image.getRGB(x, y, width, 1, pixels, offset, width);
+        }
+    }
+
+    @Override
+    public void getLuminance(int x, int y, int width, byte[] luminance, int offset) {
+        int p = dataOffset + y * scanlineStride + x * pixelStride;
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                QRCodeUtility.luminance(intData, p, luminance, offset, width);
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                int r = bandOffsets[0], g = bandOffsets[1], b = bandOffsets[2];
+                for (int i = 0; i < width; i++, p += pixelStride) {
+                    luminance[offset + i] = (byte) QRCodeUtility.luminance(
+                            byteData[p + r] & 0xFF, byteData[p + g] & 0xFF, byteData[p + b] & 0xFF);
+                }
+                break;
+            }
+            case BufferedImage.TYPE_BYTE_GRAY:
+                p += bandOffsets[0];
+                if (pixelStride == 1) {
+                    System.arraycopy(byteData, p, luminance, offset, width);
+                } else {
+                    for (int i = 0; i < width; i++, p += pixelStride)
+                        luminance[offset + i] = byteData[p];
+                }
+                break;
+            default: {
+                // per-pixel fallback through the color model, one row at a time
+                int[] pixels = new int[width];
+                image.getRGB(x, y, width, 1, pixels, 0, width);
+                QRCodeUtility.luminance(pixels, 0, luminance, offset, width);
+            }
+        }
     }
 }
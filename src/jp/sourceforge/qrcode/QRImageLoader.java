@@ -0,0 +1,124 @@
+package jp.sourceforge.qrcode;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * Reads images for decoding without holding them at full size in memory.
+ * <p>
+ * Images larger than the pixel budget are subsampled by the image reader while
+ * decoding, by the smallest integer factor that fits the budget, and an optional
+ * source region limits decoding to the rectangle of interest.
+ * When the reader can produce 8 bit gray pixels directly, the image is read
+ * into a gray raster, so no color image is ever allocated.
+ */
+public class QRImageLoader {
+    public static final long DEFAULT_PIXEL_BUDGET = 8L << 20;
+
+    final long pixelBudget;
+    int subsampling = 1;
+
+    public QRImageLoader() {
+        this(DEFAULT_PIXEL_BUDGET);
+    }
+
+    /**
+     * @param pixelBudget maximum number of pixels of a loaded image,
+     *                    Long.MAX_VALUE to never subsample
+     */
+    public QRImageLoader(long pixelBudget) {
+        if (pixelBudget < 1)
+            throw new IllegalArgumentException("Pixel budget must be greater than 0");
+        this.pixelBudget = pixelBudget;
+    }
+
+    /**
+     * Returns the subsampling factor applied to the last loaded image
+     */
+    public int getSubsampling() {
+        return subsampling;
+    }
+
+    public QRImage load(Path path) throws IOException {
+        return load(path, null);
+    }
+
+    public QRImage load(InputStream in) throws IOException {
+        return load(in, null);
+    }
+
+    /**
+     * @param region rectangle of the image to load, clipped to the image, or null for the whole image
+     */
+    public QRImage load(Path path, Rectangle region) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(path.toFile())) {
+            return load(iis, region);
+        }
+    }
+
+    /**
+     * @param region rectangle of the image to load, clipped to the image, or null for the whole image
+     */
+    public QRImage load(InputStream in, Rectangle region) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            return load(iis, region);
+        }
+    }
+
+    QRImage load(ImageInputStream iis, Rectangle region) throws IOException {
+        if (iis == null)
+            throw new IOException("Image could not be opened");
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext())
+            throw new IOException("No reader for this image format");
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(iis, true, true);
+            Rectangle bounds = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+            if (region != null) {
+                bounds = bounds.intersection(region);
+                if (bounds.isEmpty())
+                    throw new IOException("Region is outside the image");
+            }
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(bounds);
+            subsampling = getSubsampling(bounds.width, bounds.height);
+            if (subsampling > 1)
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            ImageTypeSpecifier gray = getGrayType(reader);
+            if (gray != null)
+                param.setDestinationType(gray);
+            return new QRImage(reader.read(0, param));
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    // subsampled rows and columns start at 0, so ceil(width / factor) * ceil(height / factor) pixels are read
+    int getSubsampling(int width, int height) {
+        int factor = 1;
+        while ((long) ((width + factor - 1) / factor) * ((height + factor - 1) / factor) > pixelBudget)
+            factor++;
+        return factor;
+    }
+
+    static ImageTypeSpecifier getGrayType(ImageReader reader) throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        while (types.hasNext()) {
+            ImageTypeSpecifier type = types.next();
+            if (type.getBufferedImageType() == BufferedImage.TYPE_BYTE_GRAY)
+                return type;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,172 @@
+package jp.sourceforge.qrcode.data;
+
+import java.util.Arrays;
+
+/**
+ * A bitmap packed into 64 bit words in row-major order.
+ * Pixel (x, y) is bit (x % 64) of word y * getRowSize() + x / 64,
+ * a set bit being a dark point.
+ * <p>
+ * Rows and columns can be extracted as packed words, and
+ * {@link #nextChange(long[], int, int)} finds the next brightness change
+ * in such words without testing each pixel, skipping 64 uniform pixels at a time.
+ */
+public class BitMatrix {
+    final int width;
+    final int height;
+    final int rowSize;
+    final long[] bits;
+
+    public BitMatrix(int width, int height) {
+        if (width < 1 || height < 1)
+            throw new IllegalArgumentException("Both dimensions must be greater than 0");
+        this.width = width;
+        this.height = height;
+        this.rowSize = (width + 63) >> 6;
+        this.bits = new long[rowSize * height];
+    }
+
+    /**
+     * Creates a cleared bitmap over the first words of bits, which are reused as they are
+     */
+    public BitMatrix(long[] bits, int width, int height) {
+        if (width < 1 || height < 1)
+            throw new IllegalArgumentException("Both dimensions must be greater than 0");
+        this.width = width;
+        this.height = height;
+        this.rowSize = (width + 63) >> 6;
+        if (bits.length < rowSize * height)
+            throw new IllegalArgumentException("Bitmap exceeds its buffer");
+        this.bits = bits;
+        Arrays.fill(bits, 0, rowSize * height, 0L);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of words per row
+     */
+    public int getRowSize() {
+        return rowSize;
+    }
+
+    /**
+     * Returns the number of words needed to hold one column
+     */
+    public int getColumnSize() {
+        return (height + 63) >> 6;
+    }
+
+    public boolean get(int x, int y) throws ArrayIndexOutOfBoundsException {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            throw new ArrayIndexOutOfBoundsException("Point (" + x + "," + y + ") is out of the matrix");
+        return (bits[y * rowSize + (x >> 6)] >>> x & 1) != 0;
+    }
+
+    public void set(int x, int y) {
+        bits[y * rowSize + (x >> 6)] |= 1L << x;
+    }
+
+    public void unset(int x, int y) {
+        bits[y * rowSize + (x >> 6)] &= ~(1L << x);
+    }
+
+    public void set(int x, int y, boolean value) {
+        if (value)
+            set(x, y);
+        else
+            unset(x, y);
+    }
+
+    public void flip(int x, int y) {
+        bits[y * rowSize + (x >> 6)] ^= 1L << x;
+    }
+
+    public void clear() {
+        Arrays.fill(bits, 0, rowSize * height, 0L);
+    }
+
+    /**
+     * Copies row y into words, allocating them when null or too short
+     *
+     * @return the words holding the row
+     */
+    public long[] getRow(int y, long[] words) {
+        if (words == null || words.length < rowSize)
+            words = new long[rowSize];
+        System.arraycopy(bits, y * rowSize, words, 0, rowSize);
+        return words;
+    }
+
+    /**
+     * Replaces row y with the given words.
+     * Bits beyond the width must be clear.
+     */
+    public void setRow(int y, long[] words) {
+        System.arraycopy(words, 0, bits, y * rowSize, rowSize);
+    }
+
+    /**
+     * Packs column x into words, bit (y % 64) of word y / 64 holding pixel (x, y),
+     * allocating the words when null or too short
+     *
+     * @return the words holding the column
+     */
+    public long[] getColumn(int x, long[] words) {
+        int columnSize = getColumnSize();
+        if (words == null || words.length < columnSize)
+            words = new long[columnSize];
+        int shift = x & 63;
+        int index = x >> 6;
+        for (int i = 0; i < columnSize; i++) {
+            long word = 0;
+            int end = Math.min(64, height - (i << 6));
+            for (int j = 0; j < end; j++, index += rowSize) {
+                word |= (bits[index] >>> shift & 1L) << j;
+            }
+            words[i] = word;
+        }
+        return words;
+    }
+
+    /**
+     * Returns the position of the first pixel of row y after x
+     * whose brightness differs from pixel (x, y), or the width if there is none
+     */
+    public int nextChange(int x, int y) {
+        return nextChange(bits, y * rowSize, x, width);
+    }
+
+    /**
+     * Returns the position of the first bit after from whose value differs
+     * from bit from, or size if there is none
+     *
+     * @param words packed bits as returned by {@link #getRow} or {@link #getColumn}
+     * @param from  position to start from
+     * @param size  number of valid bits in words
+     */
+    public static int nextChange(long[] words, int from, int size) {
+        return nextChange(words, 0, from, size);
+    }
+
+    static int nextChange(long[] words, int offset, int from, int size) {
+        int index = offset + (from >> 6);
+        // invert the words when starting on a set bit, so the change is the next set bit
+        long invert = -(words[index] >>> from & 1L);
+        long word = (words[index] ^ invert) & (-1L << from);
+        int end = offset + ((size - 1) >> 6);
+        while (word == 0) {
+            if (++index > end)
+                return size;
+            word = words[index] ^ invert;
+        }
+        int position = ((index - offset) << 6) + Long.numberOfTrailingZeros(word);
+        return Math.min(position, size);
+    }
+}
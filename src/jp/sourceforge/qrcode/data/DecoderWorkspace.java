@@ -0,0 +1,121 @@
+package jp.sourceforge.qrcode.data;
+
+import jp.sourceforge.qrcode.ecc.RsDecode;
+
+import java.util.Arrays;
+
+/**
+ * Scratch buffers of the decoding pipeline, kept from one decoding to the next.
+ * Buffers grow to the largest frame seen and are then reused, so decoding
+ * frames of the same size allocates next to nothing once warmed up.
+ * <p>
+ * A workspace serves a single decoding at a time, typically one per thread.
+ * What it hands out stays valid until the same buffer is requested again:
+ * a plane until the next plane of its level, a bitmap or runs until the next ones.
+ */
+public class DecoderWorkspace {
+    byte[][] planes = new byte[4][];
+    long[] bits;
+    RunLengthMatrix runs;
+    long[][] words = new long[8][];
+    int[][] ints = new int[2][];
+    boolean[][] moduleMatrix;
+    RsDecode[] rsDecoders = new RsDecode[0];
+    DecoderWorkspace[] attempts = new DecoderWorkspace[0];
+
+    /**
+     * Returns a plane of the given size over the buffer of a level,
+     * 0 for full resolution images and n for those halved n times
+     */
+    public LuminancePlane getPlane(int level, int width, int height) {
+        if (level >= planes.length)
+            planes = Arrays.copyOf(planes, level + 1);
+        int size = width * height;
+        if (planes[level] == null || planes[level].length < size)
+            planes[level] = new byte[size];
+        return new LuminancePlane(planes[level], width, height, width, 0);
+    }
+
+    /**
+     * Returns a cleared bitmap of the given size
+     */
+    public BitMatrix getBitMatrix(int width, int height) {
+        int size = ((width + 63) >> 6) * height;
+        if (bits == null || bits.length < size)
+            bits = new long[size];
+        return new BitMatrix(bits, width, height);
+    }
+
+    /**
+     * Returns the runs of a bitmap, encoded into the arrays of the previous ones
+     */
+    public RunLengthMatrix getRunLengthMatrix(BitMatrix bitmap) {
+        if (runs == null)
+            runs = new RunLengthMatrix();
+        runs.encode(bitmap);
+        return runs;
+    }
+
+    /**
+     * Returns at least length cleared words of scratch,
+     * distinct indexes giving buffers that can be used at the same time
+     */
+    public long[] getWords(int index, int length) {
+        if (index >= words.length)
+            words = Arrays.copyOf(words, index + 1);
+        if (words[index] == null || words[index].length < length)
+            words[index] = new long[length];
+        else
+            Arrays.fill(words[index], 0, length, 0L);
+        return words[index];
+    }
+
+    /**
+     * Returns at least length ints of scratch, left as the previous user wrote them,
+     * distinct indexes giving buffers that can be used at the same time
+     */
+    public int[] getInts(int index, int length) {
+        if (index >= ints.length)
+            ints = Arrays.copyOf(ints, index + 1);
+        if (ints[index] == null || ints[index].length < length)
+            ints[index] = new int[length];
+        return ints[index];
+    }
+
+    /**
+     * Returns a cleared size x size module matrix
+     */
+    public boolean[][] getModuleMatrix(int size) {
+        if (moduleMatrix == null || moduleMatrix.length != size)
+            return moduleMatrix = new boolean[size][size];
+        for (boolean[] column : moduleMatrix)
+            Arrays.fill(column, false);
+        return moduleMatrix;
+    }
+
+    /**
+     * Returns the workspace of the index-th of the attempts decoding at the same time,
+     * this workspace for the first and for the others workspaces kept with it.
+     * The workspaces must be taken before the attempts start.
+     */
+    public DecoderWorkspace getAttemptWorkspace(int index) {
+        if (index == 0)
+            return this;
+        if (index > attempts.length)
+            attempts = Arrays.copyOf(attempts, index);
+        if (attempts[index - 1] == null)
+            attempts[index - 1] = new DecoderWorkspace();
+        return attempts[index - 1];
+    }
+
+    /**
+     * Returns the Reed-Solomon decoder for npar parity symbols
+     */
+    public RsDecode getRsDecode(int npar) {
+        if (npar >= rsDecoders.length)
+            rsDecoders = Arrays.copyOf(rsDecoders, npar + 1);
+        if (rsDecoders[npar] == null)
+            rsDecoders[npar] = new RsDecode(npar);
+        return rsDecoders[npar];
+    }
+}
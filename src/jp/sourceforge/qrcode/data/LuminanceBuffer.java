@@ -0,0 +1,77 @@
+package jp.sourceforge.qrcode.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An 8 bit luminance image read in place from a ByteBuffer, typically the Y plane
+ * of a camera or video frame. The luminance of pixel (x, y) is the byte at
+ * absolute index offset + y * stride + x; the position and limit of the buffer
+ * are left untouched.
+ * <p>
+ * Y800 and GREY frames are a single such plane, and NV21, NV12 and I420 frames start
+ * with one, so they are all wrapped with offset 0 and a stride of the row length
+ * in bytes.
+ * <p>
+ * The buffer is handed to the reader as a {@link LuminancePlane} (see {@link LuminancePlane#wrap}),
+ * so nothing is copied: heap buffers share their array, and direct buffers are read in place,
+ * a row at a time.
+ */
+public class LuminanceBuffer implements QRCodeImage {
+    final ByteBuffer buffer;
+    final int width;
+    final int height;
+    final int stride;
+    final int offset;
+
+    public LuminanceBuffer(ByteBuffer buffer, int width, int height) {
+        this(buffer, width, height, width, 0);
+    }
+
+    public LuminanceBuffer(ByteBuffer buffer, int width, int height, int stride, int offset) {
+        if (width < 1 || height < 1 || stride < width || offset < 0 ||
+                offset + (long) (height - 1) * stride + width > buffer.limit())
+            throw new IllegalArgumentException("Plane exceeds its buffer");
+        this.buffer = buffer;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+        this.offset = offset;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLuminance(int x, int y) {
+        return buffer.get(offset + y * stride + x) & 0xFF;
+    }
+
+    @Override
+    public int getPixel(int x, int y) {
+        int m = getLuminance(x, y);
+        return 0xFF000000 | m << 16 | m << 8 | m;
+    }
+
+    @Override
+    public void getLuminance(int x, int y, int width, byte[] luminance, int offset) {
+        buffer.get(this.offset + y * stride + x, luminance, offset, width);
+    }
+}
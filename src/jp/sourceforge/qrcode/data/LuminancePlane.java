@@ -0,0 +1,209 @@
+package jp.sourceforge.qrcode.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An 8 bit luminance image held row-major in a single byte array.
+ * The luminance of pixel (x, y) is stored at data[offset + y * stride + x],
+ * so a plane can also describe a window into a larger buffer.
+ * <p>
+ * A plane can also lie in a direct ByteBuffer, at the same absolute index, and is then
+ * read in place: it has no array, and its rows are read with {@link #getLuminance(int, int, int, byte[], int)}.
+ */
+public class LuminancePlane implements QRCodeImage {
+    final byte[] data;
+    // the direct buffer holding the plane when it has no array
+    final ByteBuffer buffer;
+    final int width;
+    final int height;
+    final int stride;
+    final int offset;
+
+    public LuminancePlane(int width, int height) {
+        this(new byte[width * height], width, height, width, 0);
+    }
+
+    public LuminancePlane(byte[] data, int width, int height, int stride, int offset) {
+        if (width < 0 || height < 0 || stride < width || offset < 0 ||
+                (height > 0 && offset + (height - 1) * stride + width > data.length))
+            throw new IllegalArgumentException("Plane exceeds its buffer");
+        this.data = data;
+        this.buffer = null;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+        this.offset = offset;
+    }
+
+    /**
+     * Creates a plane over a ByteBuffer, sharing its array when it has one,
+     * the position and limit of the buffer being left untouched
+     */
+    public LuminancePlane(ByteBuffer buffer, int width, int height, int stride, int offset) {
+        if (width < 0 || height < 0 || stride < width || offset < 0 ||
+                (height > 0 && offset + (long) (height - 1) * stride + width > buffer.limit()))
+            throw new IllegalArgumentException("Plane exceeds its buffer");
+        if (buffer.hasArray()) {
+            this.data = buffer.array();
+            this.buffer = null;
+            this.offset = buffer.arrayOffset() + offset;
+        } else {
+            this.data = null;
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+    }
+
+    private LuminancePlane(LuminancePlane plane, int width, int height, int offset) {
+        this.data = plane.data;
+        this.buffer = plane.buffer;
+        this.width = width;
+        this.height = height;
+        this.stride = plane.stride;
+        this.offset = offset;
+    }
+
+    /**
+     * Returns the image as a plane without copying it, when it is a plane
+     * or a {@link LuminanceBuffer}, otherwise null
+     */
+    public static LuminancePlane wrap(QRCodeImage image) {
+        if (image instanceof LuminancePlane)
+            return (LuminancePlane) image;
+        if (image instanceof LuminanceBuffer) {
+            LuminanceBuffer source = (LuminanceBuffer) image;
+            return new LuminancePlane(source.buffer, source.width, source.height, source.stride, source.offset);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the luminance plane of an image, converting it one row at a time
+     * unless it already is a plane.
+     */
+    public static LuminancePlane of(QRCodeImage image) {
+        return of(image, new DecoderWorkspace());
+    }
+
+    /**
+     * Returns the luminance plane of an image, converting it into the level 0 plane
+     * of the workspace unless it already is a plane.
+     */
+    public static LuminancePlane of(QRCodeImage image, DecoderWorkspace workspace) {
+        LuminancePlane plane = wrap(image);
+        if (plane != null)
+            return plane;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        plane = workspace.getPlane(0, width, height);
+        for (int y = 0; y < height; y++) {
+            image.getLuminance(0, y, width, plane.data, y * width);
+        }
+        return plane;
+    }
+
+    /**
+     * Returns the window of this plane starting at (x, y), sharing its buffer
+     */
+    public LuminancePlane crop(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || x + width > this.width || y + height > this.height)
+            throw new IllegalArgumentException("Window exceeds the plane");
+        return new LuminancePlane(this, width, height, offset + y * stride + x);
+    }
+
+    /**
+     * Returns a plane of half the width and height, each pixel being
+     * the rounded mean of a 2x2 box of this plane.
+     * An odd last row or column is dropped.
+     */
+    public LuminancePlane downsample() {
+        return downsample(new LuminancePlane(width >> 1, height >> 1));
+    }
+
+    /**
+     * Downsamples this plane into half, a plane of half the width and height
+     *
+     * @return half
+     */
+    public LuminancePlane downsample(LuminancePlane half) {
+        int halfWidth = width >> 1;
+        int halfHeight = height >> 1;
+        if (half.width != halfWidth || half.height != halfHeight)
+            throw new IllegalArgumentException("Plane is not half the size");
+        byte[] target = half.data;
+        // without an array, both rows are read in a buffer of their own
+        byte[] source = data != null ? data : new byte[width * 2];
+        for (int y = 0; y < halfHeight; y++) {
+            int upper = offset + (y << 1) * stride;
+            int lower = upper + stride;
+            if (data == null) {
+                getLuminance(0, y << 1, width, source, 0);
+                getLuminance(0, (y << 1) + 1, width, source, width);
+                upper = 0;
+                lower = width;
+            }
+            int p = half.offset + y * half.stride;
+            for (int x = 0; x < halfWidth; x++, upper += 2, lower += 2) {
+                int sum = (source[upper] & 0xFF) + (source[upper + 1] & 0xFF) +
+                        (source[lower] & 0xFF) + (source[lower + 1] & 0xFF);
+                target[p + x] = (byte) ((sum + 2) >> 2);
+            }
+        }
+        return half;
+    }
+
+    /**
+     * Returns the array holding the plane, null when it lies in a direct buffer
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Returns the direct buffer holding the plane, null when it is held in an array
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLuminance(int x, int y) {
+        if (data == null)
+            return buffer.get(offset + y * stride + x) & 0xFF;
+        return data[offset + y * stride + x] & 0xFF;
+    }
+
+    @Override
+    public int getPixel(int x, int y) {
+        int m = getLuminance(x, y);
+        return 0xFF000000 | m << 16 | m << 8 | m;
+    }
+
+    @Override
+    public void getLuminance(int x, int y, int width, byte[] luminance, int offset) {
+        if (data == null)
+            buffer.get(this.offset + y * stride + x, luminance, offset, width);
+        else
+            System.arraycopy(data, this.offset + y * stride + x, luminance, offset, width);
+    }
+}
@@ -0,0 +1,45 @@
+package jp.sourceforge.qrcode.data;
+
+/**
+ * Successive 2x box downsamplings of a luminance plane.
+ * Level 0 is the plane itself and level n is 2^n times smaller in each direction.
+ * Levels are built from the level below the first time they are requested.
+ */
+public class LuminancePyramid {
+    final LuminancePlane[] levels;
+    final DecoderWorkspace workspace;
+
+    /**
+     * Allows up to maxLevel levels above the base, stopping before
+     * the long side of a level would fall below minSide
+     */
+    public LuminancePyramid(LuminancePlane base, int maxLevel, int minSide) {
+        this(base, maxLevel, minSide, new DecoderWorkspace());
+    }
+
+    /**
+     * Builds the levels above the base into the planes of the workspace
+     */
+    public LuminancePyramid(LuminancePlane base, int maxLevel, int minSide, DecoderWorkspace workspace) {
+        this.workspace = workspace;
+        int numLevels = 1;
+        int longSide = Math.max(base.getWidth(), base.getHeight());
+        while (numLevels <= maxLevel && (longSide >> numLevels) >= minSide)
+            numLevels++;
+        levels = new LuminancePlane[numLevels];
+        levels[0] = base;
+    }
+
+    public int getNumLevels() {
+        return levels.length;
+    }
+
+    public LuminancePlane getLevel(int level) {
+        if (levels[level] == null) {
+            LuminancePlane below = getLevel(level - 1);
+            levels[level] = below.downsample(
+                    workspace.getPlane(level, below.getWidth() >> 1, below.getHeight() >> 1));
+        }
+        return levels[level];
+    }
+}
@@ -1,5 +1,7 @@
 package jp.sourceforge.qrcode.data;
 
+import jp.sourceforge.qrcode.util.QRCodeUtility;
+
 /*
   this interface aiming platform independent implementation,
   will be used from QRCodeUtility.parseImage()
@@ -10,5 +12,37 @@ public interface QRCodeImage {
     public int getHeight();
 
     public int getPixel(int x, int y);
-}
 
+    /**
+     * Copies a horizontal run of pixels in 0xRRGGBB form.
+     * The default implementation falls back to {@link #getPixel(int, int)};
+     * implementations backed by a raster should override it with a bulk copy.
+     *
+     * @param x      left edge of the run
+     * @param y      row of the run
+     * @param width  number of pixels to copy
+     * @param pixels destination array
+     * @param offset index in pixels of the first copied pixel
+     */
+    public default void getPixels(int x, int y, int width, int[] pixels, int offset) {
+        for (int i = 0; i < width; i++) {
+            pixels[offset + i] = getPixel(x + i, y);
+        }
+    }
+
+    /**
+     * Copies a horizontal run of 8 bit luminance values, computed as
+     * (r * 30 + g * 59 + b * 11) / 100.
+     *
+     * @param x         left edge of the run
+     * @param y         row of the run
+     * @param width     number of pixels to copy
+     * @param luminance destination array
+     * @param offset    index in luminance of the first copied pixel
+     */
+    public default void getLuminance(int x, int y, int width, byte[] luminance, int offset) {
+        for (int i = 0; i < width; i++) {
+            luminance[offset + i] = (byte) QRCodeUtility.luminance(getPixel(x + i, y));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package jp.sourceforge.qrcode.data;
+
+/**
+ * A rectangular window into another image, seen as an image of its own.
+ * Pixel (x, y) of the region is pixel (left + x, top + y) of the image.
+ */
+public class QRCodeImageRegion implements QRCodeImage {
+    final QRCodeImage image;
+    final int left;
+    final int top;
+    final int width;
+    final int height;
+
+    public QRCodeImageRegion(QRCodeImage image, int left, int top, int width, int height) {
+        if (left < 0 || top < 0 || width < 1 || height < 1 ||
+                left + width > image.getWidth() || top + height > image.getHeight())
+            throw new IllegalArgumentException("Region exceeds the image");
+        this.image = image;
+        this.left = left;
+        this.top = top;
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getLeft() {
+        return left;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getPixel(int x, int y) {
+        return image.getPixel(left + x, top + y);
+    }
+
+    @Override
+    public void getPixels(int x, int y, int width, int[] pixels, int offset) {
+        image.getPixels(left + x, top + y, width, pixels, offset);
+    }
+
+    @Override
+    public void getLuminance(int x, int y, int width, byte[] luminance, int offset) {
+        image.getLuminance(left + x, top + y, width, luminance, offset);
+    }
+}
@@ -1,10 +1,7 @@
 package jp.sourceforge.qrcode.data;
 
-import java.util.Vector;
-
 import jp.sourceforge.qrcode.ecc.BCH15_5;
 import jp.sourceforge.qrcode.geom.*;
-import jp.sourceforge.qrcode.pattern.LogicalSeed;
 
 public class QRCodeSymbol {
     int version;
@@ -14,6 +11,7 @@ public class QRCodeSymbol {
     boolean[][] moduleMatrix;
     int width, height;
     Point[][] alignmentPattern;
+    SymbolLayout layout;
     final int[][] numErrorCollectionCode = {
             {7, 10, 13, 17},
             {10, 16, 22, 28}, {15, 26, 36, 44}, {20, 36, 52, 64}, {26, 48, 72, 88}, {36, 64, 96, 112},
@@ -58,36 +56,9 @@ public class QRCodeSymbol {
     void initialize() {
         //calculate version by number of side modules
         version = (width - 17) / 4;
-        Point[][] alignmentPattern = new Point[1][1];
-
-        int[] logicalSeeds = new int[1];
-/*	
-		//create "row coordinates" be based on relative coordinates
-		if (version >= 2 && version <= 6) {
-			logicalSeeds = new int[2];
-			logicalSeeds[0] = 6;
-			logicalSeeds[1] = 10 + 4 * version;
-			alignmentPattern = new Point[logicalSeeds.length][logicalSeeds.length];
-		}
-		else if (version >= 7 && version <= 13) {
-			logicalSeeds = new int[3];
-			logicalSeeds[0] = 6;
-			logicalSeeds[1] = 8 + 2 * version;
-			logicalSeeds[2] = 10 + 4 * version;
-			alignmentPattern = new Point[logicalSeeds.length][logicalSeeds.length];
-		}
-*/
-
-        if (version >= 2 && version <= 40) {
-            //int sqrtCenters = (version / 7) + 2;
-            //logicalSeeds = new int[sqrtCenters];
-            //for(int i=0 ; i<sqrtCenters ; i++) {
-            //	logicalSeeds[i] = 6 + i * (4 + 4 * version) / (sqrtCenters - 1);
-            //	logicalSeeds[i] -= (logicalSeeds[i] - 2) % 4;
-            //}
-            logicalSeeds = LogicalSeed.getSeed(version);
-            alignmentPattern = new Point[logicalSeeds.length][logicalSeeds.length];
-        }
+        layout = SymbolLayout.getLayout(version);
+        int[] logicalSeeds = layout.alignmentCenters;
+        Point[][] alignmentPattern = new Point[logicalSeeds.length][logicalSeeds.length];
 
         //obtain alignment pattern's center coordinates by logical seeds
         for (int col = 0; col < logicalSeeds.length; col++) { //列　
@@ -173,53 +144,11 @@ public class QRCodeSymbol {
     }
 
 
+    /*
+     * The table is shared by the symbols of the version and must not be modified
+     */
     boolean[][] generateMaskPattern() {
-        int maskPatternReferer = getMaskPatternReferer();
-
-        int width = getWidth();
-        int height = getHeight();
-        boolean[][] maskPattern = new boolean[width][height];
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                if (isInFunctionPattern(x, y))
-                    continue;
-                switch (maskPatternReferer) {
-                    case 0: // 000
-                        if ((y + x) % 2 == 0)
-                            maskPattern[x][y] = true;
-                        break;
-                    case 1: // 001
-                        if (y % 2 == 0)
-                            maskPattern[x][y] = true;
-                        break;
-                    case 2: // 010
-                        if (x % 3 == 0)
-                            maskPattern[x][y] = true;
-                        break;
-                    case 3: // 011
-                        if ((y + x) % 3 == 0)
-                            maskPattern[x][y] = true;
-                        break;
-                    case 4: // 100
-                        if ((y / 2 + x / 3) % 2 == 0)
-                            maskPattern[x][y] = true;
-                        break;
-                    case 5: // 101
-                        if ((y * x) % 2 + (y * x) % 3 == 0)
-                            maskPattern[x][y] = true;
-                        break;
-                    case 6: // 110
-                        if (((y * x) % 2 + (y * x) % 3) % 2 == 0)
-                            maskPattern[x][y] = true;
-                        break;
-                    case 7: // 111
-                        if (((y * x) % 3 + (y + x) % 2) % 2 == 0)
-                            maskPattern[x][y] = true;
-                        break;
-                }
-            }
-        }
-        return maskPattern;
+        return layout.getMaskPattern(getMaskPatternReferer());
     }
 
     private int calcDataCapacity() {
@@ -294,83 +223,17 @@ public class QRCodeSymbol {
     }
 
     public int[] getBlocks() {
-        int width = getWidth();
-        //System.out.println("SymbolWidth:" + Integer.toString(symbol.getWidth()));
-        //System.out.println("SymbolHeight:" + Integer.toString(symbol.getHeight()));
-        int height = getHeight();
-        int x = width - 1;
-        int y = height - 1;
-        Vector codeBits = new Vector();
-        Vector codeWords = new Vector();
-        int tempWord = 0;
-        int figure = 7;
-        int isNearFinish = 0;
-        final boolean READ_UP = true;
-        final boolean READ_DOWN = false;
-        boolean direction = READ_UP;
-        do {
-            //canvas.drawPoint(new Point(x * 4 +8 , y * 4 + 47), Color.RED);
-            codeBits.addElement(getElement(x, y));
-            //System.out.println(Integer.toString(codeBits.size()));
-            //int ratio = canvas.getWidth() / symbol.getWidth();
-            //int offsetX = (canvas.getWidth() - symbol.getWidth() * ratio) / 2;
-            //int offsetY = (canvas.getHeight() - symbol.getHeight() * ratio) / 2;
-            //canvas.drawPoint(new Point(offsetX + x * ratio + 3, offsetY + y * ratio + 3), 0xFF0000);
-            if (getElement(x, y) == true) {
-                tempWord += 1 << figure;
-            }
-            //System.out.println(new Point(x, y).toString() + " " + symbol.getElement(x, y));
-            figure--;
-            if (figure == -1) {
-                codeWords.addElement(tempWord);
-                //System.out.print(codeWords.size() + ": ");
-                //System.out.println(tempWord);
-                figure = 7;
-                tempWord = 0;
+        // modules from the lower right corner, in two module wide columns read upward then downward
+        int[] readOrder = layout.readOrder;
+        int[] gotWords = new int[readOrder.length / 8];
+        for (int i = 0, module = 0; i < gotWords.length; i++) {
+            int tempWord = 0;
+            for (int figure = 7; figure >= 0; figure--, module++) {
+                int xy = readOrder[module];
+                if (getElement(xy >> 8, xy & 0xff))
+                    tempWord += 1 << figure;
             }
-            // determine module that read next
-            do {
-                if (direction == READ_UP) {
-                    if ((x + isNearFinish) % 2 == 0) //if right side of two column
-                        x--; // to left
-                    else {
-                        if (y > 0) { //be able to move upper side
-                            x++;
-                            y--;
-                        } else { //can't move upper side
-                            x--; //change direction
-                            if (x == 6) {
-                                x--;
-                                isNearFinish = 1; // after through horizontal Timing Pattern, move pattern is changed
-                            }
-                            direction = READ_DOWN;
-                        }
-                    }
-                } else {
-                    if ((x + isNearFinish) % 2 == 0) //if left side of two column
-                        x--;
-                    else {
-                        if (y < height - 1) {
-                            x++;
-                            y++;
-                        } else {
-                            x--;
-                            if (x == 6) {
-                                x--;
-                                isNearFinish = 1;
-                            }
-                            direction = READ_UP;
-                        }
-                    }
-                }
-            } while (isInFunctionPattern(x, y));
-
-        } while (x != -1);
-
-        int[] gotWords = new int[codeWords.size()];
-        for (int i = 0; i < codeWords.size(); i++) {
-            Integer temp = (Integer) codeWords.elementAt(i);
-            gotWords[i] = temp;
+            gotWords[i] = tempWord;
         }
         return gotWords;
     }
@@ -380,36 +243,6 @@ public class QRCodeSymbol {
     }
 
     public boolean isInFunctionPattern(int targetX, int targetY) {
-        if (targetX < 9 && targetY < 9) //in Left-Up Finder Pattern or function patterns around it
-            return true;
-        if (targetX > getWidth() - 9 && targetY < 9) //in Right-up Finder Pattern or function patterns around it
-            return true;
-        if (targetX < 9 && targetY > getHeight() - 9) //in Left-bottom Finder Pattern or function patterns around it
-            return true;
-
-        if (version >= 7) {
-            if (targetX > getWidth() - 12 && targetY < 6)
-                return true;
-            if (targetX < 6 && targetY > getHeight() - 12)
-                return true;
-        }
-        // in timing pattern
-        if (targetX == 6 || targetY == 6)
-            return true;
-
-        // in alignment pattern.
-        Point[][] alignmentPattern = getAlignmentPattern();
-        int sideLength = alignmentPattern.length;
-
-        for (int y = 0; y < sideLength; y++) {
-            for (int x = 0; x < sideLength; x++) {
-                if (!(x == 0 && y == 0) && !(x == sideLength - 1 && y == 0) && !(x == 0 && y == sideLength - 1))
-                    if (Math.abs(alignmentPattern[x][y].getX() - targetX) < 3 &&
-                            Math.abs(alignmentPattern[x][y].getY() - targetY) < 3)
-                        return true;
-            }
-        }
-
-        return false;
+        return layout.isInFunctionPattern(targetX, targetY);
     }
 }
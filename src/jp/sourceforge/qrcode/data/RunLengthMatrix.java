@@ -0,0 +1,196 @@
+package jp.sourceforge.qrcode.data;
+
+import java.util.Arrays;
+
+/**
+ * The rows and columns of a {@link BitMatrix} as runs of pixels of the same brightness.
+ * <p>
+ * A line (a row when horizontal, otherwise a column) is stored as the ends of its runs,
+ * ends[getOffset(line)] to ends[getOffset(line + 1) - 1], the last end being the length
+ * of the line. A run starts where the previous one ends and runs alternate between dark
+ * and light, so pattern searches can check ratios run by run instead of pixel by pixel.
+ * <p>
+ * Both directions are built from the packed words of the bitmap, one word at a time,
+ * the columns from the changes between consecutive rows.
+ */
+public class RunLengthMatrix {
+    BitMatrix bitmap;
+    int width;
+    int height;
+    int[] rowOffsets = new int[0];
+    int[] rowEnds = new int[0];
+    int[] columnOffsets = new int[0];
+    int[] columnEnds = new int[0];
+
+    public RunLengthMatrix(BitMatrix bitmap) {
+        encode(bitmap);
+    }
+
+    RunLengthMatrix() {
+    }
+
+    /**
+     * Encodes a bitmap, reusing the arrays of the previous one when they are large enough
+     */
+    void encode(BitMatrix bitmap) {
+        this.bitmap = bitmap;
+        this.width = bitmap.width;
+        this.height = bitmap.height;
+        encodeRows();
+        encodeColumns();
+    }
+
+    void encodeRows() {
+        long[] bits = bitmap.bits;
+        int rowSize = bitmap.rowSize;
+        if (rowOffsets.length < height + 1)
+            rowOffsets = new int[height + 1];
+        int count = 0;
+        for (int y = 0; y < height; y++) {
+            rowOffsets[y] = count;
+            long previous = 0;
+            for (int i = 0, index = y * rowSize; i < rowSize; i++, index++) {
+                long word = bits[index];
+                // bit x set when pixel x differs from pixel x - 1
+                long changes = word ^ (word << 1 | previous >>> 63);
+                if (i == 0)
+                    changes &= ~1L;
+                previous = word;
+                while (changes != 0) {
+                    int x = (i << 6) + Long.numberOfTrailingZeros(changes);
+                    if (x >= width)
+                        break;
+                    rowEnds = ensureCapacity(rowEnds, count + 1);
+                    rowEnds[count++] = x;
+                    changes &= changes - 1;
+                }
+            }
+            rowEnds = ensureCapacity(rowEnds, count + 1);
+            rowEnds[count++] = width;
+        }
+        rowOffsets[height] = count;
+    }
+
+    void encodeColumns() {
+        long[] bits = bitmap.bits;
+        int rowSize = bitmap.rowSize;
+        if (columnOffsets.length < width + 1)
+            columnOffsets = new int[width + 1];
+        int[] offsets = columnOffsets;
+
+        // count the changes of each column, then place them
+        Arrays.fill(offsets, 0, width + 1, 0);
+        for (int y = 1; y < height; y++) {
+            for (int i = 0, index = y * rowSize; i < rowSize; i++, index++) {
+                long changes = bits[index] ^ bits[index - rowSize];
+                while (changes != 0) {
+                    offsets[(i << 6) + Long.numberOfTrailingZeros(changes) + 1]++;
+                    changes &= changes - 1;
+                }
+            }
+        }
+        for (int x = 0; x < width; x++)
+            offsets[x + 1] += offsets[x] + 1;
+        columnEnds = ensureCapacity(columnEnds, offsets[width]);
+
+        // offsets[x] temporarily points past the last change placed in column x
+        for (int y = 1; y < height; y++) {
+            for (int i = 0, index = y * rowSize; i < rowSize; i++, index++) {
+                long changes = bits[index] ^ bits[index - rowSize];
+                while (changes != 0) {
+                    int x = (i << 6) + Long.numberOfTrailingZeros(changes);
+                    columnEnds[offsets[x]++] = y;
+                    changes &= changes - 1;
+                }
+            }
+        }
+        // the last run of column x ends at its cursor, which is one before the first run of column x + 1
+        for (int x = width - 1; x >= 0; x--) {
+            columnEnds[offsets[x]] = height;
+            offsets[x + 1] = offsets[x] + 1;
+        }
+        offsets[0] = 0;
+    }
+
+    static int[] ensureCapacity(int[] array, int length) {
+        if (array.length >= length)
+            return array;
+        return Arrays.copyOf(array, Math.max(length, array.length * 2));
+    }
+
+    public BitMatrix getBitmap() {
+        return bitmap;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of lines, rows when horizontal, otherwise columns
+     */
+    public int getNumLines(boolean horizontal) {
+        return horizontal ? height : width;
+    }
+
+    /**
+     * Returns the length of the lines, the width when horizontal, otherwise the height
+     */
+    public int getLength(boolean horizontal) {
+        return horizontal ? width : height;
+    }
+
+    /**
+     * Returns the run ends of all the rows when horizontal, otherwise of all the columns
+     */
+    public int[] getEnds(boolean horizontal) {
+        return horizontal ? rowEnds : columnEnds;
+    }
+
+    /**
+     * Returns the index in getEnds(horizontal) of the first run of a line,
+     * the runs of the line ending before getOffset(horizontal, line + 1)
+     */
+    public int getOffset(boolean horizontal, int line) {
+        return horizontal ? rowOffsets[line] : columnOffsets[line];
+    }
+
+    /**
+     * Returns the index of the run holding the given position of a line
+     */
+    public int getRun(boolean horizontal, int line, int position) {
+        if (line < 0 || line >= getNumLines(horizontal) || position < 0 || position >= getLength(horizontal))
+            throw new ArrayIndexOutOfBoundsException("Point (" + position + ") of line " + line + " is out of the matrix");
+        int[] ends = getEnds(horizontal);
+        int low = getOffset(horizontal, line);
+        int high = getOffset(horizontal, line + 1) - 1;
+        // first run ending after position
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ends[middle] <= position)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the first position of a run of a line
+     */
+    public int getStart(boolean horizontal, int line, int run) {
+        return run == getOffset(horizontal, line) ? 0 : getEnds(horizontal)[run - 1];
+    }
+
+    /**
+     * Returns whether a run of a line is dark
+     */
+    public boolean isDark(boolean horizontal, int line, int run) {
+        boolean first = horizontal ? bitmap.get(0, line) : bitmap.get(line, 0);
+        return first ^ ((run - getOffset(horizontal, line) & 1) != 0);
+    }
+}
@@ -0,0 +1,208 @@
+package jp.sourceforge.qrcode.data;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import jp.sourceforge.qrcode.pattern.LogicalSeed;
+
+/**
+ * What the modules of a symbol are for, which depends on nothing but its version:
+ * whether each module belongs to a function pattern, the order in which the data
+ * modules are read into codewords, and the data modules each mask pattern reverses.
+ * <p>
+ * Layouts are built once per version and shared, so sampling a symbol again with
+ * an adjusted grid costs a look up per module instead of walking the patterns.
+ * They are immutable, the mask tables being built when first asked for.
+ */
+final class SymbolLayout {
+    private static final AtomicReferenceArray<SymbolLayout> layouts = new AtomicReferenceArray<>(41);
+
+    final int version;
+    final int size;
+    final int[] alignmentCenters;
+    // functionPattern[x][y] for each module of the symbol
+    final boolean[][] functionPattern;
+    // x << 8 | y of the modules of the codewords, in reading order, remainder bits left out
+    final int[] readOrder;
+    private final AtomicReferenceArray<boolean[][]> maskPatterns = new AtomicReferenceArray<>(8);
+
+    private SymbolLayout(int version) {
+        this.version = version;
+        size = 17 + 4 * version;
+        alignmentCenters = version >= 2 && version <= 40 ? LogicalSeed.getSeed(version) : new int[]{0};
+        functionPattern = new boolean[size][size];
+        for (int x = 0; x < size; x++)
+            for (int y = 0; y < size; y++)
+                functionPattern[x][y] = isFunctionModule(x, y);
+        readOrder = traceReadOrder();
+    }
+
+    /**
+     * Returns the layout of a version, building it on first use
+     */
+    static SymbolLayout getLayout(int version) {
+        if (version < 0 || version >= layouts.length())
+            return new SymbolLayout(version);
+        SymbolLayout layout = layouts.get(version);
+        if (layout == null) {
+            layouts.compareAndSet(version, null, new SymbolLayout(version));
+            layout = layouts.get(version);
+        }
+        return layout;
+    }
+
+    /**
+     * Returns whether a module, possibly off the symbol, belongs to a function pattern
+     */
+    boolean isInFunctionPattern(int targetX, int targetY) {
+        if (targetX >= 0 && targetX < size && targetY >= 0 && targetY < size)
+            return functionPattern[targetX][targetY];
+        return isFunctionModule(targetX, targetY);
+    }
+
+    private boolean isFunctionModule(int targetX, int targetY) {
+        if (targetX < 9 && targetY < 9) //in Left-Up Finder Pattern or function patterns around it
+            return true;
+        if (targetX > size - 9 && targetY < 9) //in Right-up Finder Pattern or function patterns around it
+            return true;
+        if (targetX < 9 && targetY > size - 9) //in Left-bottom Finder Pattern or function patterns around it
+            return true;
+
+        if (version >= 7) {
+            if (targetX > size - 12 && targetY < 6)
+                return true;
+            if (targetX < 6 && targetY > size - 12)
+                return true;
+        }
+        // in timing pattern
+        if (targetX == 6 || targetY == 6)
+            return true;
+
+        // in alignment pattern, those overlapping finder patterns left out
+        int sideLength = alignmentCenters.length;
+        for (int y = 0; y < sideLength; y++) {
+            for (int x = 0; x < sideLength; x++) {
+                if (!(x == 0 && y == 0) && !(x == sideLength - 1 && y == 0) && !(x == 0 && y == sideLength - 1))
+                    if (Math.abs(alignmentCenters[x] - targetX) < 3 &&
+                            Math.abs(alignmentCenters[y] - targetY) < 3)
+                        return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Walks the two module wide columns from the lower right corner, upward then downward,
+     * skipping the vertical timing pattern and the function patterns
+     */
+    private int[] traceReadOrder() {
+        int[] modules = new int[size * size];
+        int count = 0;
+        int x = size - 1;
+        int y = size - 1;
+        int isNearFinish = 0;
+        final boolean READ_UP = true;
+        final boolean READ_DOWN = false;
+        boolean direction = READ_UP;
+        do {
+            modules[count++] = x << 8 | y;
+            // determine module that read next
+            do {
+                if (direction == READ_UP) {
+                    if ((x + isNearFinish) % 2 == 0) //if right side of two column
+                        x--; // to left
+                    else {
+                        if (y > 0) { //be able to move upper side
+                            x++;
+                            y--;
+                        } else { //can't move upper side
+                            x--; //change direction
+                            if (x == 6) {
+                                x--;
+                                isNearFinish = 1; // after through horizontal Timing Pattern, move pattern is changed
+                            }
+                            direction = READ_DOWN;
+                        }
+                    }
+                } else {
+                    if ((x + isNearFinish) % 2 == 0) //if left side of two column
+                        x--;
+                    else {
+                        if (y < size - 1) {
+                            x++;
+                            y++;
+                        } else {
+                            x--;
+                            if (x == 6) {
+                                x--;
+                                isNearFinish = 1;
+                            }
+                            direction = READ_UP;
+                        }
+                    }
+                }
+            } while (isInFunctionPattern(x, y));
+        } while (x != -1);
+
+        int[] readOrder = new int[count - count % 8];
+        System.arraycopy(modules, 0, readOrder, 0, readOrder.length);
+        return readOrder;
+    }
+
+    /**
+     * Returns the modules reversed by a mask pattern, those of function patterns left alone.
+     * The table is shared and must not be modified.
+     */
+    boolean[][] getMaskPattern(int maskPatternReferer) {
+        boolean[][] maskPattern = maskPatterns.get(maskPatternReferer);
+        if (maskPattern == null) {
+            maskPatterns.compareAndSet(maskPatternReferer, null, generateMaskPattern(maskPatternReferer));
+            maskPattern = maskPatterns.get(maskPatternReferer);
+        }
+        return maskPattern;
+    }
+
+    private boolean[][] generateMaskPattern(int maskPatternReferer) {
+        boolean[][] maskPattern = new boolean[size][size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (functionPattern[x][y])
+                    continue;
+                switch (maskPatternReferer) {
+                    case 0: // 000
+                        if ((y + x) % 2 == 0)
+                            maskPattern[x][y] = true;
+                        break;
+                    case 1: // 001
+                        if (y % 2 == 0)
+                            maskPattern[x][y] = true;
+                        break;
+                    case 2: // 010
+                        if (x % 3 == 0)
+                            maskPattern[x][y] = true;
+                        break;
+                    case 3: // 011
+                        if ((y + x) % 3 == 0)
+                            maskPattern[x][y] = true;
+                        break;
+                    case 4: // 100
+                        if ((y / 2 + x / 3) % 2 == 0)
+                            maskPattern[x][y] = true;
+                        break;
+                    case 5: // 101
+                        if ((y * x) % 2 + (y * x) % 3 == 0)
+                            maskPattern[x][y] = true;
+                        break;
+                    case 6: // 110
+                        if (((y * x) % 2 + (y * x) % 3) % 2 == 0)
+                            maskPattern[x][y] = true;
+                        break;
+                    case 7: // 111
+                        if (((y * x) % 3 + (y + x) % 2) % 2 == 0)
+                            maskPattern[x][y] = true;
+                        break;
+                }
+            }
+        }
+        return maskPattern;
+    }
+}
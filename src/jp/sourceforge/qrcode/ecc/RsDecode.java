@@ -1,7 +1,12 @@
 package jp.sourceforge.qrcode.ecc;
 
+import java.util.Arrays;
+
 /**
  * ReedSolomon code Decoder
+ * <p>
+ * The working arrays are allocated once per decoder and reused by every decoding,
+ * so a decoder must not be used by several threads at the same time.
  *
  * @author Masayuki Miyazaki
  * <a href="http://sourceforge.jp/projects/reedsolomon/">...</a>
@@ -11,9 +16,23 @@ public class RsDecode {
     public static final int RS_CORRECT_ERROR = -2;
     private static final Galois galois = Galois.getInstance();
     private final int npar;
+    private final int[] syn;
+    private final int[] sigma;
+    private final int[] omega;
+    private final int[] pos;
+    private final int[] sg0;
+    private final int[] sg1;
+    private final int[] wk;
 
     public RsDecode(int npar) {
         this.npar = npar;
+        this.syn = new int[npar];
+        this.sigma = new int[npar / 2 + 2];
+        this.omega = new int[npar / 2 + 1];
+        this.pos = new int[npar / 2 + 1];
+        this.sg0 = new int[npar];
+        this.sg1 = new int[npar];
+        this.wk = new int[npar];
     }
 
     /**
@@ -33,8 +52,12 @@ public class RsDecode {
      * < 0: エラー
      */
     private int calcSigmaMBM(int[] sigma, int[] omega, int[] syn) {
-        int[] sg0 = new int[npar];
-        int[] sg1 = new int[npar];
+        int[] sg0 = this.sg0;
+        int[] sg1 = this.sg1;
+        int[] wk = this.wk;
+        Arrays.fill(sg0, 0);
+        Arrays.fill(sg1, 0);
+        Arrays.fill(wk, 0);
         sg0[1] = 1;
         sg1[0] = 1;
         int jisu0 = 1;
@@ -49,7 +72,6 @@ public class RsDecode {
             }
             if (d != 0) {
                 int logd = galois.toLog(d);
-                int[] wk = new int[npar];
                 for (int i = 0; i <= n; i++) {
                     wk[i] = sg1[i] ^ galois.mulExp(sg0[i], logd);
                 }
@@ -65,7 +87,10 @@ public class RsDecode {
                     }
                     jisu0 = jisu1;
                 }
+                // the previous σ becomes the next working array, its terms above n being 0
+                int[] previous = sg1;
                 sg1 = wk;
+                wk = previous;
             }
             System.arraycopy(sg0, 0, sg0, 1, Math.min(sg0.length - 1, jisu0));
             sg0[0] = 0;
@@ -216,19 +241,16 @@ public class RsDecode {
             return RS_PERM_ERROR;
         }
         // calculate syndrome
-        int[] syn = new int[npar];
         if (galois.calcSyndrome(data, length, syn)) {
             return 0;        // no errors
         }
         // find sigma and omega from the syndrome
-        int[] sigma = new int[npar / 2 + 2];
-        int[] omega = new int[npar / 2 + 1];
+        Arrays.fill(sigma, 0);
         int jisu = calcSigmaMBM(sigma, omega, syn);
         if (jisu <= 0) {
             return RS_CORRECT_ERROR;
         }
         // find error position using chien search
-        int[] pos = new int[jisu];
         int r = chienSearch(pos, length, jisu, sigma);
         if (r < 0) {
             return r;
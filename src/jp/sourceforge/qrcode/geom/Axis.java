@@ -1,7 +1,5 @@
 package jp.sourceforge.qrcode.geom;
 
-import jp.sourceforge.qrcode.reader.QRCodeImageReader;
-
 /**
  * This class is designed to move a target point based on independent axes.
  * It allows the movement of target coordinates on a rotated, scaled, and gauche QR Code image.
@@ -11,18 +9,21 @@ public class Axis {
 
     int sin, cos;
     int modulePitch;
+    int decimalPoint;
     Point origin;
 
     /**
      * Creates a new Axis object with the specified angle and module pitch.
      * @param angle The angle value is an array of two integers (sin and cos).
      * @param modulePitch Module pitch or size.
+     * @param decimalPoint Number of fraction bits of the angle and module pitch.
      */
 
-    public Axis(int[] angle, int modulePitch) {
+    public Axis(int[] angle, int modulePitch, int decimalPoint) {
         this.sin = angle[0];
         this.cos = angle[1];
         this.modulePitch = modulePitch;
+        this.decimalPoint = decimalPoint;
         this.origin = new Point();
     }
 
@@ -103,7 +104,7 @@ public class Axis {
 
     //maeda's FIX
     public Point translate(int moveX, int moveY) {
-        long dp = QRCodeImageReader.DECIMAL_POINT;
+        long dp = decimalPoint;
         Point point = new Point();
         int dx = (moveX == 0) ? 0 : (modulePitch * moveX) >> dp;
         int dy = (moveY == 0) ? 0 : (modulePitch * moveY) >> dp;
@@ -1,153 +1,113 @@
-package jp.sourceforge.qrcode.geom;
-
-/**
- * This class is used for sampling grid
- * It allows one area to have a different size from another area
- */
-public class SamplingGrid {
-    /**
-     * A grid for a single area
-     */
-    private static class AreaGrid {
-        protected Line[] xLine;
-        protected Line[] yLine;
-
-        public AreaGrid(int width, int height) {
-            xLine = new Line[width];
-            yLine = new Line[height];
-        }
-
-        public int getWidth() {
-            return (xLine.length);
-        }
-
-        public int getHeight() {
-            return (yLine.length);
-        }
-
-        public Line getXLine(int x) throws ArrayIndexOutOfBoundsException {
-            return xLine[x];
-        }
-
-        public Line getYLine(int y) throws ArrayIndexOutOfBoundsException {
-            return yLine[y];
-        }
-
-        public Line[] getXLines() {
-            return xLine;
-        }
-
-        public Line[] getYLines() {
-            return yLine;
-        }
-
-        public void setXLine(int x, Line line) {
-            xLine[x] = line;
-        }
-
-        public void setYLine(int y, Line line) {
-            yLine[y] = line;
-        }
-    }
-
-
-    private final AreaGrid[][] grid;
-
-    public SamplingGrid(int sqrtNumArea) {
-        grid = new AreaGrid[sqrtNumArea][sqrtNumArea];
-    }
-
-    public void initGrid(int ax, int ay, int width, int height) {
-        grid[ax][ay] = new AreaGrid(width, height);
-    }
-
-    public void setXLine(int ax, int ay, int x, Line line) {
-        grid[ax][ay].setXLine(x, line);
-    }
-
-    public void setYLine(int ax, int ay, int y, Line line) {
-        grid[ax][ay].setYLine(y, line);
-    }
-
-    public Line getXLine(int ax, int ay, int x) throws ArrayIndexOutOfBoundsException {
-        return (grid[ax][ay].getXLine(x));
-    }
-
-    public Line getYLine(int ax, int ay, int y) throws ArrayIndexOutOfBoundsException {
-        return (grid[ax][ay].getYLine(y));
-    }
-
-    public Line[] getXLines(int ax, int ay) {
-        return (grid[ax][ay].getXLines());
-    }
-
-    public Line[] getYLines(int ax, int ay) {
-        return (grid[ax][ay].getYLines());
-    }
-
-    public int getWidth() {
-        return (grid[0].length);
-    }
-
-    public int getHeight() {
-        return (grid.length);
-    }
-
-    public int getWidth(int ax, int ay) {
-        return (grid[ax][ay].getWidth());
-    }
-
-    public int getHeight(int ax, int ay) {
-        return (grid[ax][ay].getHeight());
-    }
-
-    public int getTotalWidth() {
-        int total = 0;
-        for (int i = 0; i < grid.length; i++) {
-            total += grid[i][0].getWidth();
-            if (i > 0)
-                total -= 1;
-        }
-        return total;
-    }
-
-    public int getTotalHeight() {
-        int total = 0;
-        for (int i = 0; i < grid[0].length; i++) {
-            total += grid[0][i].getHeight();
-            if (i > 0)
-                total -= 1;
-        }
-        return total;
-    }
-
-
-    public int getX(int ax, int x) {
-        int total = x;
-        for (int i = 0; i < ax; i++) {
-            total += grid[i][0].getWidth() - 1;
-        }
-        return total;
-    }
-
-    public int getY(int ay, int y) {
-        int total = y;
-        for (int i = 0; i < ay; i++) {
-            total += grid[0][i].getHeight() - 1;
-        }
-        return total;
-    }
-
-    public void adjust(Point adjust) {
-        int dx = adjust.getX(), dy = adjust.getY();
-        for (int ay = 0; ay < grid[0].length; ay++) {
-            for (AreaGrid[] areaGrids : grid) {
-                for (int i = 0; i < areaGrids[ay].xLine.length; i++)
-                    areaGrids[ay].xLine[i].translate(dx, dy);
-                for (int j = 0; j < areaGrids[ay].yLine.length; j++)
-                    areaGrids[ay].yLine[j].translate(dx, dy);
-            }
-        }
-    }
-
-}
+package jp.sourceforge.qrcode.geom;
+
+/**
+ * This class is used for sampling grid
+ * It allows one area to have a different size from another area
+ * <p>
+ * Each area maps its modules into the image by the perspective transform taking the
+ * centers of its four corner modules to the four given points, so the modules of a row
+ * are reached by adding the same steps to homogeneous coordinates, one division each.
+ * Areas of a column have the same width and areas of a row the same height, an area
+ * sharing its first column with the last of the area on its left, and likewise for rows.
+ * Once its areas are set a grid doesn't change, a moved grid being sampled at an offset.
+ */
+public class SamplingGrid {
+    private final int[] widths;
+    private final int[] heights;
+    // module column (row) of the first module of each area column (row)
+    private final int[] xOffsets;
+    private final int[] yOffsets;
+    // transforms[ax][ay] = {a, b, c, d, e, f, g, h}, module (x, y) of the area being at
+    // ((a * x + b * y + c) / (g * x + h * y + 1), (d * x + e * y + f) / (g * x + h * y + 1))
+    private final double[][][] transforms;
+
+    public SamplingGrid(int sqrtNumArea) {
+        widths = new int[sqrtNumArea];
+        heights = new int[sqrtNumArea];
+        xOffsets = new int[sqrtNumArea + 1];
+        yOffsets = new int[sqrtNumArea + 1];
+        transforms = new double[sqrtNumArea][sqrtNumArea][];
+    }
+
+    /**
+     * Sets an area of width x height modules whose corner module centers are at the given points
+     */
+    public void setArea(int ax, int ay, int width, int height,
+                        Point upperLeft, Point upperRight, Point lowerLeft, Point lowerRight) {
+        widths[ax] = width;
+        heights[ay] = height;
+        for (int i = 0; i < widths.length; i++) {
+            xOffsets[i + 1] = xOffsets[i] + widths[i] - 1;
+            yOffsets[i + 1] = yOffsets[i] + heights[i] - 1;
+        }
+        double[] transform = getSquareToQuad(upperLeft, upperRight, lowerRight, lowerLeft);
+        // from the unit square to modules
+        for (int i = 0; i < 8; i += 3)
+            transform[i] /= Math.max(1, width - 1);
+        for (int i = 1; i < 8; i += 3)
+            transform[i] /= Math.max(1, height - 1);
+        transforms[ax][ay] = transform;
+    }
+
+    /*
+     * Returns the perspective transform taking (0, 0), (1, 0), (1, 1) and (0, 1) to p0, p1, p2
+     * and p3 (Heckbert, Fundamentals of Texture Mapping and Image Warping, 1989), affine when
+     * the quadrilateral is a parallelogram or too flat to be anything else
+     */
+    static double[] getSquareToQuad(Point p0, Point p1, Point p2, Point p3) {
+        double x0 = p0.getX(), y0 = p0.getY(), x1 = p1.getX(), y1 = p1.getY();
+        double x2 = p2.getX(), y2 = p2.getY(), x3 = p3.getX(), y3 = p3.getY();
+        double dx3 = x0 - x1 + x2 - x3;
+        double dy3 = y0 - y1 + y2 - y3;
+        double dx1 = x1 - x2, dx2 = x3 - x2;
+        double dy1 = y1 - y2, dy2 = y3 - y2;
+        double denominator = dx1 * dy2 - dx2 * dy1;
+        if ((dx3 == 0 && dy3 == 0) || denominator == 0)
+            return new double[]{x1 - x0, x3 - x0, x0, y1 - y0, y3 - y0, y0, 0, 0};
+        double g = (dx3 * dy2 - dx2 * dy3) / denominator;
+        double h = (dx1 * dy3 - dx3 * dy1) / denominator;
+        return new double[]{x1 - x0 + g * x1, x3 - x0 + h * x3, x0,
+                y1 - y0 + g * y1, y3 - y0 + h * y3, y0, g, h};
+    }
+
+    /**
+     * Returns the transform of an area, {a, b, c, d, e, f, g, h}: module (x, y) of the area is at
+     * ((a * x + b * y + c) / (g * x + h * y + 1), (d * x + e * y + f) / (g * x + h * y + 1))
+     */
+    public double[] getTransform(int ax, int ay) {
+        return transforms[ax][ay];
+    }
+
+    public int getWidth() {
+        return widths.length;
+    }
+
+    public int getHeight() {
+        return heights.length;
+    }
+
+    public int getWidth(int ax, int ay) {
+        return widths[ax];
+    }
+
+    public int getHeight(int ax, int ay) {
+        return heights[ay];
+    }
+
+    public int getTotalWidth() {
+        return xOffsets[widths.length] + 1;
+    }
+
+    public int getTotalHeight() {
+        return yOffsets[heights.length] + 1;
+    }
+
+    public int getX(int ax, int x) {
+        return xOffsets[ax] + x;
+    }
+
+    public int getY(int ay, int y) {
+        return yOffsets[ay] + y;
+    }
+
+}
@@ -2,17 +2,29 @@ package jp.sourceforge.qrcode.pattern;
 
 
 import jp.sourceforge.qrcode.QRCodeDecoder;
+import jp.sourceforge.qrcode.data.BitMatrix;
+import jp.sourceforge.qrcode.data.LuminancePlane;
+import jp.sourceforge.qrcode.data.RunLengthMatrix;
 import jp.sourceforge.qrcode.reader.*;
 import jp.sourceforge.qrcode.exception.AlignmentPatternNotFoundException;
 import jp.sourceforge.qrcode.exception.InvalidVersionException;
 import jp.sourceforge.qrcode.geom.*;
 import jp.sourceforge.qrcode.util.*;
 
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
 public class AlignmentPattern {
     static final int RIGHT = 1;
     static final int BOTTOM = 2;
     static final int LEFT = 3;
     static final int TOP = 4;
+    // modules around the estimated center searched by the template
+    static final int TEMPLATE_SEARCH_MODULES = 2;
+    // alignment patterns per side from which they are refined on a pool, version 14 and above
+    static final int WAVEFRONT_MIN_CENTERS = 4;
 
     static DebugCanvas canvas = QRCodeDecoder.getCanvas();
     Point[][] center;
@@ -24,14 +36,41 @@ public class AlignmentPattern {
         this.patternDistance = patternDistance;
     }
 
-    public static AlignmentPattern findAlignmentPattern(boolean[][] image, FinderPattern finderPattern)
+    public static AlignmentPattern findAlignmentPattern(BitMatrix image, FinderPattern finderPattern)
+            throws AlignmentPatternNotFoundException, InvalidVersionException {
+        return findAlignmentPattern(new RunLengthMatrix(image), finderPattern);
+    }
+
+    public static AlignmentPattern findAlignmentPattern(RunLengthMatrix image, FinderPattern finderPattern)
+            throws AlignmentPatternNotFoundException, InvalidVersionException {
+        return findAlignmentPattern(image, null, finderPattern);
+    }
+
+    /**
+     * Finds the alignment patterns, refining each estimated center by matching a template
+     * on the luminance of the bitmap when one is given (see {@link Template}),
+     * otherwise by following the edges of the bitmap around it (see {@link #getPrecisionCenter})
+     */
+    public static AlignmentPattern findAlignmentPattern(RunLengthMatrix image, LuminancePlane luminance,
+                                                        FinderPattern finderPattern)
+            throws AlignmentPatternNotFoundException, InvalidVersionException {
+        return findAlignmentPattern(image, luminance, finderPattern, null);
+    }
+
+    /**
+     * Finds the alignment patterns, those of a symbol with at least WAVEFRONT_MIN_CENTERS per side
+     * being refined at the same time on the pool when one is given, one anti-diagonal of the grid
+     * after the other. The centers are the same as without a pool.
+     */
+    public static AlignmentPattern findAlignmentPattern(RunLengthMatrix image, LuminancePlane luminance,
+                                                        FinderPattern finderPattern, ForkJoinPool pool)
             throws AlignmentPatternNotFoundException, InvalidVersionException {
 
         Point[][] logicalCenters = getLogicalCenter(finderPattern);
         int logicalDistance = logicalCenters[1][0].getX() - logicalCenters[0][0].getX();
         //With it converts in order to handle in the same way
         Point[][] centers;
-        centers = getCenter(image, finderPattern, logicalCenters);
+        centers = getCenter(image, luminance, finderPattern, logicalCenters, pool);
         return new AlignmentPattern(centers, logicalDistance);
 
     }
@@ -49,25 +88,32 @@ public class AlignmentPattern {
         return patternDistance;
     }
 
-    static Point[][] getCenter(boolean[][] image, FinderPattern finderPattern, Point[][] logicalCenters)
+    static Point[][] getCenter(RunLengthMatrix image, LuminancePlane luminance, FinderPattern finderPattern,
+                               Point[][] logicalCenters, ForkJoinPool pool)
             throws AlignmentPatternNotFoundException {
         int moduleSize = finderPattern.getModuleSize();
 
-        Axis axis = new Axis(finderPattern.getAngle(), moduleSize);
+        int decimalPoint = finderPattern.getDecimalPoint();
+        Axis axis = new Axis(finderPattern.getAngle(), moduleSize, decimalPoint);
         int sqrtCenters = logicalCenters.length;
+        boolean wavefront = pool != null && sqrtCenters >= WAVEFRONT_MIN_CENTERS;
+        Template template = luminance != null && !wavefront ? new Template(luminance, moduleSize, decimalPoint) : null;
         Point[][] centers = new Point[sqrtCenters][sqrtCenters];
 
         axis.setOrigin(finderPattern.getCenter(FinderPattern.UL));
         centers[0][0] = axis.translate(3, 3);
-        canvas.drawCross(centers[0][0], Color.BLUE);
+        canvas.drawCross(centers[0][0], Color.BLUE.getValue());
 
         axis.setOrigin(finderPattern.getCenter(FinderPattern.UR));
         centers[sqrtCenters - 1][0] = axis.translate(-3, 3);
-        canvas.drawCross(centers[sqrtCenters - 1][0], Color.BLUE);
+        canvas.drawCross(centers[sqrtCenters - 1][0], Color.BLUE.getValue());
 
         axis.setOrigin(finderPattern.getCenter(FinderPattern.DL));
         centers[0][sqrtCenters - 1] = axis.translate(3, -3);
-        canvas.drawCross(centers[0][sqrtCenters - 1], Color.BLUE);
+        canvas.drawCross(centers[0][sqrtCenters - 1], Color.BLUE.getValue());
+
+        if (wavefront)
+            refineCentersByWavefront(image, luminance, finderPattern, logicalCenters, centers, pool);
 
         Point tmpPoint = centers[0][0];
 
@@ -77,38 +123,10 @@ public class AlignmentPattern {
 //					canvas.drawCross(centers[x][y], java.awt.Color.MAGENTA);
                     continue;
                 }
-                Point target;
-                if (y == 0) {
-                    if (x < sqrtCenters - 1) {
-                        target = axis.translate(centers[x - 1][y], logicalCenters[x][y].getX() - logicalCenters[x - 1][y].getX(), 0);
-                        centers[x][y] = new Point(target.getX(), target.getY());
-                        canvas.drawCross(centers[x][y], Color.RED);
-                    }
-                } else if (x == 0) {
-                    if (y < sqrtCenters - 1) {
-                        target = axis.translate(centers[x][y - 1], 0, logicalCenters[x][y].getY() - logicalCenters[x][y - 1].getY());
-                        centers[x][y] = new Point(target.getX(), target.getY());
-                        canvas.drawCross(centers[x][y], Color.RED);
-                    }
-                } else {
-                    Point t1 = axis.translate(centers[x - 1][y], logicalCenters[x][y].getX() - logicalCenters[x - 1][y].getX(), 0);
-                    Point t2 = axis.translate(centers[x][y - 1], 0, logicalCenters[x][y].getY() - logicalCenters[x][y - 1].getY());
-                    centers[x][y] = new Point((t1.getX() + t2.getX()) / 2, (t1.getY() + t2.getY()) / 2 + 1);
-                }
-                if (finderPattern.getVersion() > 1) {
-                    Point precisionCenter = getPrecisionCenter(image, centers[x][y]);
-
-                    //if (centers[x][y].distanceOf(precisionCenter) < 6) {
-                    canvas.drawCross(centers[x][y], Color.RED);
-                    int dx = precisionCenter.getX() - centers[x][y].getX();
-                    int dy = precisionCenter.getY() - centers[x][y].getY();
-                    canvas.println("Adjust AP(" + x + "," + y + ") to d(" + dx + "," + dy + ")");
-
-                    centers[x][y] = precisionCenter;
-                    //}
-                }
-                canvas.drawCross(centers[x][y], Color.BLUE);
-                canvas.drawLine(new Line(tmpPoint, centers[x][y]), Color.LIGHTBLUE);
+                if (!wavefront)
+                    refineCenter(image, template, axis, finderPattern, logicalCenters, centers, x, y);
+                canvas.drawCross(centers[x][y], Color.BLUE.getValue());
+                canvas.drawLine(new Line(tmpPoint, centers[x][y]), Color.LIGHTBLUE.getValue());
                 tmpPoint = centers[x][y];
                 // Top row
 /*				if (x >= 1 && x<(sqrtCenters-1) && y == 0 && sqrtCenters >= 3) {
@@ -162,6 +180,98 @@ public class AlignmentPattern {
         return centers;
     }
 
+    /*
+     * Predicts the center of the alignment pattern (x, y) from its left and upper neighbours
+     * and refines it, by template matching when a template is given
+     */
+    static void refineCenter(RunLengthMatrix image, Template template, Axis axis, FinderPattern finderPattern,
+                             Point[][] logicalCenters, Point[][] centers, int x, int y)
+            throws AlignmentPatternNotFoundException {
+        int sqrtCenters = centers.length;
+        Point target;
+        if (y == 0) {
+            if (x < sqrtCenters - 1) {
+                target = axis.translate(centers[x - 1][y], logicalCenters[x][y].getX() - logicalCenters[x - 1][y].getX(), 0);
+                centers[x][y] = new Point(target.getX(), target.getY());
+                canvas.drawCross(centers[x][y], Color.RED.getValue());
+            }
+        } else if (x == 0) {
+            if (y < sqrtCenters - 1) {
+                target = axis.translate(centers[x][y - 1], 0, logicalCenters[x][y].getY() - logicalCenters[x][y - 1].getY());
+                centers[x][y] = new Point(target.getX(), target.getY());
+                canvas.drawCross(centers[x][y], Color.RED.getValue());
+            }
+        } else {
+            Point t1 = axis.translate(centers[x - 1][y], logicalCenters[x][y].getX() - logicalCenters[x - 1][y].getX(), 0);
+            Point t2 = axis.translate(centers[x][y - 1], 0, logicalCenters[x][y].getY() - logicalCenters[x][y - 1].getY());
+            centers[x][y] = new Point((t1.getX() + t2.getX()) / 2, (t1.getY() + t2.getY()) / 2 + 1);
+        }
+        if (finderPattern.getVersion() > 1) {
+            Point precisionCenter = template != null ?
+                    template.getCenter(centers[x][y]) :
+                    getPrecisionCenter(image, centers[x][y]);
+
+            //if (centers[x][y].distanceOf(precisionCenter) < 6) {
+            canvas.drawCross(centers[x][y], Color.RED.getValue());
+            int dx = precisionCenter.getX() - centers[x][y].getX();
+            int dy = precisionCenter.getY() - centers[x][y].getY();
+            canvas.println("Adjust AP(" + x + "," + y + ") to d(" + dx + "," + dy + ")");
+
+            centers[x][y] = precisionCenter;
+            //}
+        }
+    }
+
+    /*
+     * Refines the centers one anti-diagonal (x + y) after the other, those of a diagonal at the
+     * same time on the pool. A center is predicted from its left and upper neighbours, both on
+     * the previous diagonal, so the centers are those refined one by one. As axes and templates
+     * keep state, each position on a diagonal has its own, kept from one diagonal to the next.
+     */
+    static void refineCentersByWavefront(RunLengthMatrix image, LuminancePlane luminance, FinderPattern finderPattern,
+                                         Point[][] logicalCenters, Point[][] centers, ForkJoinPool pool)
+            throws AlignmentPatternNotFoundException {
+        int sqrtCenters = centers.length;
+        int moduleSize = finderPattern.getModuleSize();
+        int decimalPoint = finderPattern.getDecimalPoint();
+        // slot 0 is the calling thread's, which refines the first center of each diagonal
+        Axis[] axes = new Axis[sqrtCenters];
+        Template[] templates = new Template[sqrtCenters];
+        for (int diagonal = 1; diagonal <= (sqrtCenters - 1) * 2; diagonal++) {
+            Vector<ForkJoinTask<?>> tasks = new Vector<>();
+            int first = -1;
+            int slot = 0;
+            try {
+                for (int x = Math.max(0, diagonal - sqrtCenters + 1); x <= Math.min(diagonal, sqrtCenters - 1); x++) {
+                    int column = x;
+                    int row = diagonal - x;
+                    if ((column == 0 && row == sqrtCenters - 1) || (column == sqrtCenters - 1 && row == 0))
+                        continue;
+                    if (axes[slot] == null) {
+                        axes[slot] = new Axis(finderPattern.getAngle(), moduleSize, decimalPoint);
+                        templates[slot] = luminance != null ? new Template(luminance, moduleSize, decimalPoint) : null;
+                    }
+                    if (first < 0) {
+                        first = column;
+                        slot++;
+                        continue;
+                    }
+                    Axis axis = axes[slot];
+                    Template template = templates[slot++];
+                    tasks.add(pool.submit(() -> refineCenter(image, template, axis,
+                            finderPattern, logicalCenters, centers, column, row)));
+                }
+                refineCenter(image, templates[0], axes[0], finderPattern, logicalCenters, centers, first, diagonal - first);
+            } finally {
+                // the tasks write into centers and use the slots, so none outlives its diagonal
+                for (ForkJoinTask<?> task : tasks)
+                    task.quietlyJoin();
+            }
+            for (ForkJoinTask<?> task : tasks)
+                task.join();
+        }
+    }
+
 /*
 		static Point[][] getCenter(boolean[][] image, FinderPattern finderPattern, Point[][] logicalCenters) 
 			throws AlignmentPatternEdgeNotFoundException {
@@ -224,15 +334,16 @@ public class AlignmentPattern {
 */
 
 
-    static Point getPrecisionCenter(boolean[][] image, Point targetPoint)
+    static Point getPrecisionCenter(RunLengthMatrix runs, Point targetPoint)
             throws AlignmentPatternNotFoundException {
+        BitMatrix image = runs.getBitmap();
         // find nearest dark point and update it as new rough center point
         // when original rough center points light point
         int tx = targetPoint.getX(), ty = targetPoint.getY();
-        if ((tx < 0 || ty < 0) || (tx > image.length - 1 || ty > image[0].length - 1))
+        if ((tx < 0 || ty < 0) || (tx > image.getWidth() - 1 || ty > image.getHeight() - 1))
             throw new AlignmentPatternNotFoundException("Alignment Pattern finder exceeded out of image");
 
-        if (image[targetPoint.getX()][targetPoint.getY()] == QRCodeImageReader.POINT_LIGHT) {
+        if (image.get(targetPoint.getX(), targetPoint.getY()) == QRCodeImageReader.POINT_LIGHT) {
             int scope = 0;
             boolean found = false;
             while (!found) {
@@ -241,39 +352,171 @@ public class AlignmentPattern {
                     for (int dx = scope; dx > -scope; dx--) {
                         int x = targetPoint.getX() + dx;
                         int y = targetPoint.getY() + dy;
-                        if ((x < 0 || y < 0) || (x > image.length - 1 || y > image[0].length - 1))
+                        if ((x < 0 || y < 0) || (x > image.getWidth() - 1 || y > image.getHeight() - 1))
                             throw new AlignmentPatternNotFoundException("Alignment Pattern finder exceeded out of image");
-                        if (image[x][y] == QRCodeImageReader.POINT_DARK) {
+                        if (image.get(x, y) == QRCodeImageReader.POINT_DARK) {
                             targetPoint = new Point(targetPoint.getX() + dx, targetPoint.getY() + dy);
-                            canvas.drawPoint(targetPoint, Color.RED);
+                            canvas.drawPoint(targetPoint, Color.RED.getValue());
                             found = true;
                         }
                     }
                 }
             }
         }
-        int x, lx, rx, y, uy, dy;
-        x = lx = rx = targetPoint.getX();
-        y = uy = dy = targetPoint.getY();
+        int x = targetPoint.getX();
+        int y = targetPoint.getY();
 
-        // GuoQing Hu's FIX
-        while (lx >= 1 && targetPointOnTheCorner(image, lx, y, lx - 1, y)) lx--;
-        while (rx < image.length - 1 && targetPointOnTheCorner(image, rx, y, rx + 1, y)) rx++;
-        while (uy >= 1 && targetPointOnTheCorner(image, x, uy, x, uy - 1)) uy--;
-        while (dy < image[0].length - 1 && targetPointOnTheCorner(image, x, dy, x, dy + 1)) dy++;
+        // GuoQing Hu's FIX: the light runs around the dark center, up to the next dark runs
+        int[] lxrx = getLightBounds(runs, true, y, x);
+        int[] uydy = getLightBounds(runs, false, x, y);
 
-        return new Point((lx + rx + 1) / 2, (uy + dy + 1) / 2);
+        return new Point((lxrx[0] + lxrx[1] + 1) / 2, (uydy[0] + uydy[1] + 1) / 2);
     }
 
-    static boolean targetPointOnTheCorner(boolean[][] image, int x, int y, int nx, int ny) {
-        if (x < 0 || y < 0 || nx < 0 || ny < 0 || x > image.length || y > image[0].length || nx > image.length || ny > image[0].length) {
-            // System.out.println("Overflow: x="+x+", y="+y+" nx="+nx+" ny="+ny+" x.max="+image.length+", y.max="+image[0].length);
-            throw new AlignmentPatternNotFoundException("Alignment Pattern Finder exceeded image edge");
-            //return true;
-        } else {
-            return (image[x][y] != QRCodeImageReader.POINT_LIGHT ||
-                    image[nx][ny] != QRCodeImageReader.POINT_DARK);
+    /**
+     * Template of an alignment pattern matched on the luminance around estimated centers.
+     * Each point up to TEMPLATE_SEARCH_MODULES modules from the estimate is scored by how
+     * much lighter the light ring of 3x3 modules around it is than its dark center module
+     * and its dark ring of 5x5 modules, as mean luminances of boxes read in constant time
+     * from a summed-area table of the window around the estimate. Points half a module
+     * apart are scored first, then the pixels around the best of them; points of equal
+     * best score are averaged.
+     * <p>
+     * Boxes are clipped to the image, so a pattern at the border is still found.
+     * Unlike the edge search the cost is fixed, the window being
+     * (2 * (TEMPLATE_SEARCH_MODULES + 2.5) + 1)^2 modules large.
+     */
+    static class Template {
+        final LuminancePlane luminance;
+        // half sides of the boxes in pixels: the center module, the light ring, the dark ring
+        final int[] halves = new int[3];
+        final int radius;
+        final int step;
+        // table[(y - top + 1) * stride + x - left + 1] sums the pixels of the window up to (x, y)
+        final int[] table;
+        int left, top, right, bottom, stride;
+        final long[] box = new long[6];
+
+        Template(LuminancePlane luminance, int moduleSize, int decimalPoint) {
+            this.luminance = luminance;
+            for (int i = 0; i < 3; i++)
+                halves[i] = (int) ((long) moduleSize * (i * 2 + 1) >> decimalPoint + 1);
+            halves[1] = Math.max(halves[1], halves[0] + 1);
+            halves[2] = Math.max(halves[2], halves[1] + 1);
+            radius = Math.max(2, (int) ((long) moduleSize * TEMPLATE_SEARCH_MODULES >> decimalPoint));
+            step = Math.max(1, halves[0]);
+            int windowSize = (radius + halves[2]) * 2 + 1;
+            table = new int[(windowSize + 1) * (windowSize + 1)];
+        }
+
+        Point getCenter(Point targetPoint)
+                throws AlignmentPatternNotFoundException {
+            int tx = targetPoint.getX(), ty = targetPoint.getY();
+            if ((tx < 0 || ty < 0) || (tx > luminance.getWidth() - 1 || ty > luminance.getHeight() - 1))
+                throw new AlignmentPatternNotFoundException("Alignment Pattern finder exceeded out of image");
+            sum(tx, ty);
+            int[] best = match(tx, ty, radius, step, tx, ty);
+            if (step > 1)
+                best = match(best[0], best[1], step - 1, 1, tx, ty);
+            return new Point(best[0], best[1]);
         }
+
+        // fills the table with the window around the target, clipped to the image
+        void sum(int tx, int ty) {
+            int reach = radius + halves[2];
+            left = Math.max(0, tx - reach);
+            top = Math.max(0, ty - reach);
+            right = Math.min(luminance.getWidth() - 1, tx + reach);
+            bottom = Math.min(luminance.getHeight() - 1, ty + reach);
+            stride = right - left + 2;
+            byte[] data = luminance.getData();
+            // the row of the window, read from the plane when it has no array
+            byte[] source = data != null ? data : new byte[stride - 1];
+            Arrays.fill(table, 0, stride, 0);
+            for (int y = top; y <= bottom; y++) {
+                int pixel = luminance.getOffset() + y * luminance.getStride() + left;
+                if (data == null) {
+                    luminance.getLuminance(left, y, stride - 1, source, 0);
+                    pixel = 0;
+                }
+                int index = (y - top + 1) * stride;
+                table[index] = 0;
+                int rowSum = 0;
+                for (int x = 1; x < stride; x++) {
+                    rowSum += source[pixel++] & 0xFF;
+                    table[index + x] = table[index + x - stride] + rowSum;
+                }
+            }
+        }
+
+        // best scored points step pixels apart up to radius from (cx, cy), kept in the window of the target
+        int[] match(int cx, int cy, int radius, int step, int tx, int ty) {
+            int fromX = Math.max(Math.max(left, tx - this.radius), cx - radius);
+            int toX = Math.min(Math.min(right, tx + this.radius), cx + radius);
+            int fromY = Math.max(Math.max(top, ty - this.radius), cy - radius);
+            int toY = Math.min(Math.min(bottom, ty + this.radius), cy + radius);
+            double bestScore = -Double.MAX_VALUE;
+            int sumX = 0, sumY = 0, numBest = 0;
+            for (int y = fromY; y <= toY; y += step) {
+                for (int x = fromX; x <= toX; x += step) {
+                    double score = getScore(x, y);
+                    if (score > bestScore) {
+                        bestScore = score;
+                        sumX = sumY = numBest = 0;
+                    }
+                    if (score == bestScore) {
+                        sumX += x;
+                        sumY += y;
+                        numBest++;
+                    }
+                }
+            }
+            return new int[]{(sumX + (numBest >> 1)) / numBest, (sumY + (numBest >> 1)) / numBest};
+        }
+
+        // mean luminance of the light ring, twice, less those of the dark center and ring
+        double getScore(int x, int y) {
+            for (int i = 0; i < 3; i++)
+                getBoxSum(x, y, halves[i], i * 2);
+            double center = (double) box[0] / box[1];
+            double ring = (double) (box[2] - box[0]) / Math.max(1, box[3] - box[1]);
+            double outer = (double) (box[4] - box[2]) / Math.max(1, box[5] - box[3]);
+            return ring * 2 - center - outer;
+        }
+
+        // sum and area of the box of half side half around (x, y), clipped to the window, into box[index]
+        void getBoxSum(int x, int y, int half, int index) {
+            int x0 = Math.max(left, x - half) - left;
+            int y0 = Math.max(top, y - half) - top;
+            int x1 = Math.min(right, x + half) - left + 1;
+            int y1 = Math.min(bottom, y + half) - top + 1;
+            box[index] = (long) table[y1 * stride + x1] - table[y0 * stride + x1] -
+                    table[y1 * stride + x0] + table[y0 * stride + x0];
+            box[index + 1] = (long) (x1 - x0) * (y1 - y0);
+        }
+    }
+
+    /**
+     * Returns the start of the last light run starting at or before position, 0 if none,
+     * and the end of the last light run before the first dark run starting after position,
+     * the end of the line if none
+     */
+    static int[] getLightBounds(RunLengthMatrix runs, boolean horizontal, int line, int position) {
+        int[] ends = runs.getEnds(horizontal);
+        int run = runs.getRun(horizontal, line, position);
+        int firstRun = runs.getOffset(horizontal, line);
+        int lastRun = runs.getOffset(horizontal, line + 1) - 1;
+        boolean dark = runs.isDark(horizontal, line, run);
+
+        int low = 0;
+        int lightRun = dark ? run - 1 : run;
+        if (lightRun > firstRun)
+            low = ends[lightRun - 1];
+        int high = runs.getLength(horizontal) - 1;
+        int darkRun = dark ? run + 2 : run + 1;
+        if (darkRun <= lastRun)
+            high = ends[darkRun - 1] - 1;
+        return new int[]{low, high};
     }
 
     //get logical center coordinates of each alignment patterns
@@ -2,10 +2,10 @@ package jp.sourceforge.qrcode.pattern;
 
 
 import jp.sourceforge.qrcode.QRCodeDecoder;
+import jp.sourceforge.qrcode.data.BitMatrix;
+import jp.sourceforge.qrcode.data.RunLengthMatrix;
 import jp.sourceforge.qrcode.reader.*;
 import jp.sourceforge.qrcode.exception.FinderPatternNotFoundException;
-import jp.sourceforge.qrcode.exception.InvalidVersionInfoException;
-import jp.sourceforge.qrcode.exception.InvalidVersionException;
 import jp.sourceforge.qrcode.exception.VersionInformationException;
 import jp.sourceforge.qrcode.geom.*;
 
@@ -18,6 +18,9 @@ public class FinderPattern {
     public static final int UR = 1;
     public static final int DL = 2;
 
+    // groups of centers tried as the finder patterns of a single symbol
+    static final int MAX_CANDIDATES = 4;
+
     // this constant used for VersionInformation's error correction (BCC
     static final int[] VersionInfoBit = {
             0x07C94, 0x085BC, 0x09A99, 0x0A4D3, 0x0BBF6, 0x0C762, 0x0D847,
@@ -30,47 +33,276 @@ public class FinderPattern {
     static DebugCanvas canvas = QRCodeDecoder.getCanvas();
     Point[] center;
     int version;
+    int versionConfidence;
+    double score = Double.MAX_VALUE;
     int[] sincos;
     int[] width;
     int[] moduleSize;
+    int decimalPoint;
+
+    public static FinderPattern findFinderPattern(BitMatrix image)
+            throws FinderPatternNotFoundException,
+            VersionInformationException {
+        return findFinderPattern(new RunLengthMatrix(image));
+    }
 
-    public static FinderPattern findFinderPattern(boolean[][] image)
+    public static FinderPattern findFinderPattern(RunLengthMatrix runs)
+            throws FinderPatternNotFoundException,
+            VersionInformationException {
+        return findFinderPattern(runs, 0);
+    }
+
+    /**
+     * Finds the finder patterns of modules at least minModuleSize pixels large,
+     * scanning only some lines first when minModuleSize is at least 1
+     * (see {@link #findLineAcross(RunLengthMatrix, int)})
+     *
+     * @return the best of {@link #findFinderPatternCandidates(RunLengthMatrix, int)}
+     */
+    public static FinderPattern findFinderPattern(RunLengthMatrix runs, int minModuleSize)
             throws FinderPatternNotFoundException,
             VersionInformationException {
-        Line[] lineAcross = findLineAcross(image);
-        Line[] lineCross = findLineCross(lineAcross);
-        Point[] center = null;
-        try {
-            center = getCenter(lineCross);
-        } catch (FinderPatternNotFoundException e) {
-            throw e;
+        FinderPattern[] candidates = findFinderPatternCandidates(runs, minModuleSize);
+        if (candidates.length == 0)
+            throw new FinderPatternNotFoundException("Invalid number of Finder Pattern detected");
+        return candidates[0];
+    }
+
+    /**
+     * Finds the groups of three centers that can be the finder patterns of the symbol,
+     * ranked from the best fitting (see {@link #getScore()}), so that a reader failing
+     * with one can try the next instead of scanning the image again.
+     * Three centers found are the only candidate, whatever their score; otherwise up to
+     * MAX_CANDIDATES groups are taken, each center possibly in several of them.
+     *
+     * @return the candidates, none when no group is found
+     */
+    public static FinderPattern[] findFinderPatternCandidates(RunLengthMatrix runs, int minModuleSize) {
+        Line[] lineCross = findLineCross(findLineAcross(runs, minModuleSize));
+        Vector<int[]> crossings = getCrossings(lineCross, Integer.MAX_VALUE);
+        Point[] centers = new Point[crossings.size()];
+        int[] sizes = new int[crossings.size()];
+        getCenters(lineCross, crossings, centers, sizes);
+
+        Vector<int[]> groups;
+        if (centers.length == 3) {
+            groups = new Vector<>();
+            groups.addElement(new int[]{0, 1, 2});
+        } else {
+            groups = groupCenters(centers, sizes);
+        }
+        Vector<FinderPattern> candidates = new Vector<>();
+        for (int i = 0; i < groups.size() && candidates.size() < MAX_CANDIDATES; i++) {
+            int[] members = groups.elementAt(i);
+            Point[] center = {centers[members[0]], centers[members[1]], centers[members[2]]};
+            canvas.drawPolygon(center, Color.RED.getValue());
+            try {
+                FinderPattern pattern = create(runs, center);
+                pattern.score = getGroupScore(centers, sizes, members);
+                candidates.addElement(pattern);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                canvas.println("Finder patterns at " + center[0] + center[1] + center[2] + " skipped: " + e.getMessage());
+            }
+        }
+
+        return candidates.toArray(new FinderPattern[0]);
+    }
+
+    /**
+     * Finds the finder patterns of all the symbols of an image. The centers found are
+     * grouped by three, each group being a right angle with sides of the same length
+     * and finder patterns of the same size; groups that fit best are taken first.
+     * Groups whose width or version cannot be read are left out.
+     *
+     * @return finder patterns ordered from the best fitting group, at least one
+     */
+    public static FinderPattern[] findFinderPatterns(RunLengthMatrix runs)
+            throws FinderPatternNotFoundException {
+        return findFinderPatterns(runs, 0);
+    }
+
+    /**
+     * Finds the finder patterns of all the symbols whose modules are at least minModuleSize pixels large
+     */
+    public static FinderPattern[] findFinderPatterns(RunLengthMatrix runs, int minModuleSize)
+            throws FinderPatternNotFoundException {
+        Line[] lineCross = findLineCross(findLineAcross(runs, minModuleSize));
+        Vector<int[]> crossings = getCrossings(lineCross, Integer.MAX_VALUE);
+        int numCenters = crossings.size();
+        Point[] centers = new Point[numCenters];
+        int[] sizes = new int[numCenters];
+        getCenters(lineCross, crossings, centers, sizes);
+
+        Vector<FinderPattern> patterns = new Vector<>();
+        boolean[] used = new boolean[numCenters];
+        for (int[] members : groupCenters(centers, sizes)) {
+            if (used[members[0]] || used[members[1]] || used[members[2]])
+                continue;
+            used[members[0]] = used[members[1]] = used[members[2]] = true;
+            Point[] center = {centers[members[0]], centers[members[1]], centers[members[2]]};
+            canvas.drawPolygon(center, Color.RED.getValue());
+            try {
+                FinderPattern pattern = create(runs, center);
+                pattern.score = getGroupScore(centers, sizes, members);
+                patterns.addElement(pattern);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                canvas.println("Finder patterns at " + center[0] + center[1] + center[2] + " skipped: " + e.getMessage());
+            }
+        }
+        if (patterns.isEmpty())
+            throw new FinderPatternNotFoundException("No group of Finder Patterns detected");
+
+        return patterns.toArray(new FinderPattern[0]);
+    }
+
+    // the center of each crossing and the width of its finder pattern along both of its lines, 14 modules
+    static void getCenters(Line[] lineCross, Vector<int[]> crossings, Point[] centers, int[] sizes) {
+        for (int i = 0; i < centers.length; i++) {
+            int[] crossing = crossings.elementAt(i);
+            centers[i] = new Point(lineCross[crossing[0]].getCenter().getX(),
+                    lineCross[crossing[1]].getCenter().getY());
+            sizes[i] = lineCross[crossing[0]].getLength() + lineCross[crossing[1]].getLength();
+        }
+    }
+
+    /*
+     * Returns the groups of three centers that can be the finder patterns of a symbol, as
+     * their indexes, from the best fitting (see getGroupScore).
+     */
+    static Vector<int[]> groupCenters(Point[] centers, int[] sizes) {
+        int numCenters = centers.length;
+        Vector<int[]> groups = new Vector<>();
+        Vector<Double> scores = new Vector<>();
+        for (int i = 0; i < numCenters - 2; i++) {
+            for (int j = i + 1; j < numCenters - 1; j++) {
+                if (!isSameSize(sizes[i], sizes[j]))
+                    continue;
+                for (int k = j + 1; k < numCenters; k++) {
+                    if (!isSameSize(sizes[i], sizes[k]) || !isSameSize(sizes[j], sizes[k]))
+                        continue;
+                    int[] members = {i, j, k};
+                    double score = getGroupScore(centers, sizes, members);
+                    if (score == Double.MAX_VALUE ||
+                            surroundsCenter(centers, members, (sizes[i] + sizes[j] + sizes[k]) / 42.0))
+                        continue;
+                    // insertion in the order of scores
+                    int index = groups.size();
+                    while (index > 0 && scores.elementAt(index - 1) > score)
+                        index--;
+                    groups.insertElementAt(members, index);
+                    scores.insertElementAt(score, index);
+                }
+            }
+        }
+        return groups;
+    }
+
+    /*
+     * Returns how badly three centers fit the finder patterns of a symbol, Double.MAX_VALUE
+     * when they cannot be them. The corner of the right angle is the UL pattern, its sides
+     * from 12 to 180 modules long (versions 1 to 40 with some perspective). A group fits
+     * worse as the ratio of its sides, the cosine of its angle and the ratio of its largest
+     * and smallest finder patterns grow, 0 being a perfect symbol.
+     */
+    static double getGroupScore(Point[] centers, int[] sizes, int[] members) {
+        int size0 = sizes[members[0]], size1 = sizes[members[1]], size2 = sizes[members[2]];
+        double moduleSize = (size0 + size1 + size2) / 42.0;
+        double sizeRatio = (double) Math.max(size0, Math.max(size1, size2)) /
+                Math.min(size0, Math.min(size1, size2));
+        double best = Double.MAX_VALUE;
+        for (int corner = 0; corner < 3; corner++) {
+            Point origin = centers[members[corner]];
+            Point p1 = centers[members[(corner + 1) % 3]];
+            Point p2 = centers[members[(corner + 2) % 3]];
+            long dx1 = p1.getX() - origin.getX(), dy1 = p1.getY() - origin.getY();
+            long dx2 = p2.getX() - origin.getX(), dy2 = p2.getY() - origin.getY();
+            double side1 = Math.sqrt(dx1 * dx1 + dy1 * dy1);
+            double side2 = Math.sqrt(dx2 * dx2 + dy2 * dy2);
+            double shortSide = Math.min(side1, side2);
+            double longSide = Math.max(side1, side2);
+            if (shortSide < moduleSize * 12 || longSide > moduleSize * 180)
+                continue;
+            double cos = Math.abs(dx1 * dx2 + dy1 * dy2) / (side1 * side2);
+            if (longSide > shortSide * 1.3 || cos > 0.35)
+                continue;
+            best = Math.min(best, longSide / shortSide - 1 + cos + sizeRatio - 1);
         }
-        int[] sincos = getAngle(center);
+        return best;
+    }
+
+    /*
+     * Returns whether a center other than the members is inside their triangle or less than
+     * a module outside of it. Symbols side by side give such groups of the finder patterns of
+     * different symbols, with the patterns of one of them on the sides of the triangle.
+     */
+    static boolean surroundsCenter(Point[] centers, int[] members, double moduleSize) {
+        Point a = centers[members[0]];
+        Point b = centers[members[1]];
+        Point c = centers[members[2]];
+        // sign making the distances to the sides positive inside
+        long orientation = (long) (b.getX() - a.getX()) * (c.getY() - a.getY()) -
+                (long) (b.getY() - a.getY()) * (c.getX() - a.getX()) > 0 ? 1 : -1;
+        for (int i = 0; i < centers.length; i++) {
+            if (i == members[0] || i == members[1] || i == members[2])
+                continue;
+            if (getSideDistance(a, b, centers[i]) * orientation > -moduleSize &&
+                    getSideDistance(b, c, centers[i]) * orientation > -moduleSize &&
+                    getSideDistance(c, a, centers[i]) * orientation > -moduleSize)
+                return true;
+        }
+        return false;
+    }
+
+    // signed distance of a point to the line from p1 to p2, positive on its left
+    static double getSideDistance(Point p1, Point p2, Point point) {
+        long dx = p2.getX() - p1.getX();
+        long dy = p2.getY() - p1.getY();
+        return (dx * (point.getY() - p1.getY()) - dy * (point.getX() - p1.getX())) / Math.sqrt(dx * dx + dy * dy);
+    }
+
+    // finder patterns of a symbol are no more than 1.5 times larger than each other
+    static boolean isSameSize(int size1, int size2) {
+        return Math.max(size1, size2) * 2 <= Math.min(size1, size2) * 3;
+    }
+
+    /**
+     * Reads the angle, width, module size and version of the finder patterns at three centers
+     */
+    static FinderPattern create(RunLengthMatrix runs, Point[] center) {
+        BitMatrix image = runs.getBitmap();
+        int decimalPoint = QRCodeImageReader.getDecimalPoint(runs.getWidth(), runs.getHeight());
+        int[] sincos = getAngle(center, decimalPoint);
         center = sort(center, sincos);
-        int[] width = getWidth(image, center, sincos);
+        int[] width = getWidth(runs, center, sincos);
         // moduleSize for version recognition
-        int[] moduleSize = {(width[UL] << QRCodeImageReader.DECIMAL_POINT) / 7,
-                (width[UR] << QRCodeImageReader.DECIMAL_POINT) / 7,
-                (width[DL] << QRCodeImageReader.DECIMAL_POINT) / 7};
-        int version = calcRoughVersion(center, width);
+        int[] moduleSize = {(width[UL] << decimalPoint) / 7,
+                (width[UR] << decimalPoint) / 7,
+                (width[DL] << decimalPoint) / 7};
+        int version = calcRoughVersion(center, width, decimalPoint);
+        int versionConfidence = 0;
         if (version > 6) {
-            try {
-                version = calcExactVersion(center, sincos, moduleSize, image);
-            } catch (VersionInformationException e) {
-                //use rough version data
-                // throw e;
-
+            int[] exactVersion = calcExactVersion(center, sincos, moduleSize, image, decimalPoint);
+            // version information is trusted with up to 3 errors (BCH 18-6),
+            // up to 5 when it agrees with the rough version, otherwise the rough version is used
+            if (exactVersion[1] <= 3 || (exactVersion[1] <= 5 && Math.abs(exactVersion[0] - version) <= 1)) {
+                version = exactVersion[0];
+                versionConfidence = exactVersion[2];
+            } else {
+                canvas.println("Version info error. now use rough version " + version);
             }
         }
-        return new FinderPattern(center, version, sincos, width, moduleSize);
+        return new FinderPattern(center, version, versionConfidence, sincos, width, moduleSize, decimalPoint);
     }
 
-    FinderPattern(Point[] center, int version, int[] sincos, int[] width, int[] moduleSize) {
+    FinderPattern(Point[] center, int version, int versionConfidence, int[] sincos, int[] width, int[] moduleSize,
+                  int decimalPoint) {
         this.center = center;
         this.version = version;
+        this.versionConfidence = versionConfidence;
         this.sincos = sincos;
         this.width = width;
         this.moduleSize = moduleSize;
+        this.decimalPoint = decimalPoint;
     }
 
     public Point[] getCenter() {
@@ -92,10 +324,38 @@ public class FinderPattern {
         return sincos;
     }
 
+    /**
+     * Returns the number of fraction bits of the angle and module sizes, which depends
+     * on the size of the image the patterns were found in
+     * (see {@link QRCodeImageReader#getDecimalPoint(int, int)})
+     */
+    public int getDecimalPoint() {
+        return decimalPoint;
+    }
+
     public int getVersion() {
         return version;
     }
 
+    /**
+     * Returns how many more bits of the version information read differ from the second
+     * nearest version than from the version found, 0 when the version is only estimated
+     * from the distance between the patterns (below version 7 or unreadable information)
+     */
+    public int getVersionConfidence() {
+        return versionConfidence;
+    }
+
+    /**
+     * Returns how badly the three patterns fit a symbol: the ratio of the sides of their
+     * right angle, the cosine of the angle and the ratio of their largest and smallest
+     * sizes, each minus its ideal value, so 0 is a perfect symbol. Double.MAX_VALUE when
+     * they do not fit, three centers found alone being kept whatever they look like.
+     */
+    public double getScore() {
+        return score;
+    }
+
     public int getModuleSize() {
         return moduleSize[UL];
     }
@@ -114,101 +374,131 @@ public class FinderPattern {
      * INFO: Although this method detects lines does not across Finder Patterns too,
      *       these are ignored safely in after process (FinderPattern.findLineCross())
      */
-    static Line[] findLineAcross(boolean[][] image) {
-        final int READ_HORIZONTAL = 0;
-        final int READ_VERTICAL = 1;
+    static Line[] findLineAcross(RunLengthMatrix runs) {
+        Vector<Line> lineAcross = new Vector<>();
+        int[] lengthBuffer = new int[5];
+        int decimalPoint = QRCodeImageReader.getDecimalPoint(runs.getWidth(), runs.getHeight());
 
-        int imageWidth = image.length;
-        int imageHeight = image[0].length;
+        //read horizontally, then vertically
+        for (int y = 0; y < runs.getHeight(); y++)
+            findLineAcross(runs, true, y, lengthBuffer, lineAcross, decimalPoint);
+        for (int x = 0; x < runs.getWidth(); x++)
+            findLineAcross(runs, false, x, lengthBuffer, lineAcross, decimalPoint);
 
-        //int currentX = 0, currentY = 0;
-        Point current = new Point();
-        Vector lineAcross = new Vector();
+        Line[] foundLines = lineAcross.toArray(new Line[0]);
 
-        //buffer contains recent length of modules which has same brightness
+        canvas.drawLines(foundLines, Color.LIGHTGREEN.getValue());
+        return foundLines;
+    }
+
+    /*
+     * Scans every line when minModuleSize is less than 1. Otherwise scans one line out of
+     * 2 * minModuleSize first: the 3 modules wide center of a finder pattern is crossed by
+     * at least one of them. A line found whose perpendicular through its middle crosses
+     * a pattern too is taken for a finder pattern, and all the lines within 3/4 of its length
+     * on either side are scanned: they cover the whole finder pattern, which lies at most
+     * 5/7 of the line away even when turned by 45 degrees. So patterns are found from the
+     * same lines as by the full scan, while the lines far from any are skipped.
+     */
+    static Line[] findLineAcross(RunLengthMatrix runs, int minModuleSize) {
+        if (minModuleSize < 1)
+            return findLineAcross(runs);
+        Vector<Line> lineAcross = new Vector<>();
         int[] lengthBuffer = new int[5];
-        int bufferPointer = 0;
+        int decimalPoint = QRCodeImageReader.getDecimalPoint(runs.getWidth(), runs.getHeight());
+        findLineAcrossCoarseToFine(runs, true, minModuleSize * 2, lengthBuffer, lineAcross, decimalPoint);
+        findLineAcrossCoarseToFine(runs, false, minModuleSize * 2, lengthBuffer, lineAcross, decimalPoint);
 
-        int direction = READ_HORIZONTAL; //start to read horizontally
-        boolean lastElement = QRCodeImageReader.POINT_LIGHT;
-
-        while (true) {
-            //check points in image
-            boolean currentElement = image[current.getX()][current.getY()];
-            if (currentElement == lastElement) { //target point has same brightness with last point
-                lengthBuffer[bufferPointer]++;
-            } else { //target point has different brightness with last point
-                if (currentElement == QRCodeImageReader.POINT_LIGHT) {
-                    if (checkPattern(lengthBuffer, bufferPointer)) { //detected pattern
-                        int x1, y1, x2, y2;
-                        if (direction == READ_HORIZONTAL) {
-                            //obtain X coordinates of both side of the detected horizontal pattern
-                            x1 = current.getX();
-                            for (int j = 0; j < 5; j++) {
-                                x1 -= lengthBuffer[j];
-                            }
-                            x2 = current.getX() - 1; //right side is last X coordinate
-                            y1 = y2 = current.getY();
-                        } else {
-                            x1 = x2 = current.getX();
-                            //obtain Y coordinates of both side of the detected vertical pattern
-                            // upper side is sum of length of buffer
-                            y1 = current.getY();
-                            for (int j = 0; j < 5; j++) {
-                                y1 -= lengthBuffer[j];
-                            }
-                            y2 = current.getY() - 1; // bottom side is last Y coordinate
-                        }
-                        lineAcross.addElement(new Line(x1, y1, x2, y2));
-                    }
-                }
-                bufferPointer = (bufferPointer + 1) % 5;
-                lengthBuffer[bufferPointer] = 1;
-                lastElement = !lastElement;
-            }
+        Line[] foundLines = lineAcross.toArray(new Line[0]);
 
-            // determine if read next, change read direction or terminate this loop
-            if (direction == READ_HORIZONTAL) {
-                if (current.getX() < imageWidth - 1) {
-                    current.translate(1, 0);
-                } else if (current.getY() < imageHeight - 1) {
-                    current.set(0, current.getY() + 1);
-                    lengthBuffer = new int[5];
-                } else {
-                    current.set(0, 0); //reset target point
-                    lengthBuffer = new int[5];
-                    direction = READ_VERTICAL; //start to read vertically
-                }
-            } else { //reading vertically
-                if (current.getY() < imageHeight - 1)
-                    current.translate(0, 1);
-                else if (current.getX() < imageWidth - 1) {
-                    current.set(current.getX() + 1, 0);
-                    lengthBuffer = new int[5];
-                } else {
-                    break;
-                }
+        canvas.drawLines(foundLines, Color.LIGHTGREEN.getValue());
+        return foundLines;
+    }
+
+    static void findLineAcrossCoarseToFine(RunLengthMatrix runs, boolean horizontal, int step,
+                                           int[] lengthBuffer, Vector<Line> lineAcross, int decimalPoint) {
+        int numLines = runs.getNumLines(horizontal);
+        // lines to scan from each line on, less those from the line before, once summed up
+        int[] covered = new int[numLines + 1];
+        Vector<Line> coarseLines = new Vector<>();
+        for (int position = step >> 1; position < numLines; position += step) {
+            coarseLines.removeAllElements();
+            findLineAcross(runs, horizontal, position, lengthBuffer, coarseLines, decimalPoint);
+            for (int i = 0; i < coarseLines.size(); i++) {
+                Line line = coarseLines.elementAt(i);
+                if (!isCrossed(runs, horizontal, position, line, lengthBuffer, decimalPoint))
+                    continue;
+                int reach = line.getLength() * 3 / 4 + 1;
+                covered[Math.max(0, position - reach)]++;
+                covered[Math.min(numLines, position + reach + 1)]--;
             }
         }
+        int coverage = 0;
+        for (int position = 0; position < numLines; position++) {
+            coverage += covered[position];
+            if (coverage > 0)
+                findLineAcross(runs, horizontal, position, lengthBuffer, lineAcross, decimalPoint);
+        }
+    }
 
-        Line[] foundLines = new Line[lineAcross.size()];
+    // whether the perpendicular through the middle of a line found crosses a pattern (1:1:3:1:1) too
+    static boolean isCrossed(RunLengthMatrix runs, boolean horizontal, int position, Line line,
+                             int[] lengthBuffer, int decimalPoint) {
+        int middle = horizontal ? line.getCenter().getX() : line.getCenter().getY();
+        int center = runs.getRun(!horizontal, middle, position);
+        if (center - 2 < runs.getOffset(!horizontal, middle) ||
+                center + 2 >= runs.getOffset(!horizontal, middle + 1) - 1 ||
+                !runs.isDark(!horizontal, middle, center))
+            return false;
+        int[] ends = runs.getEnds(!horizontal);
+        for (int i = 0; i < 5; i++)
+            lengthBuffer[i] = ends[center - 2 + i] - runs.getStart(!horizontal, middle, center - 2 + i);
+        return checkPattern(lengthBuffer, 4, decimalPoint);
+    }
 
-        for (int i = 0; i < foundLines.length; i++)
-            foundLines[i] = (Line) lineAcross.elementAt(i);
+    // scan one row or column run by run
+    static void findLineAcross(RunLengthMatrix runs, boolean horizontal, int position,
+                               int[] lengthBuffer, Vector<Line> lineAcross, int decimalPoint) {
+        //buffer contains recent length of modules which has same brightness
+        Arrays.fill(lengthBuffer, 0);
+        int bufferPointer = 0;
 
-        canvas.drawLines(foundLines, Color.LIGHTGREEN);
-        return foundLines;
+        int[] ends = runs.getEnds(horizontal);
+        int firstRun = runs.getOffset(horizontal, position);
+        int lastRun = runs.getOffset(horizontal, position + 1) - 1;
+        boolean dark = runs.isDark(horizontal, position, firstRun);
+        int start = 0;
+        for (int run = firstRun; run <= lastRun; run++, dark = !dark) {
+            int end = ends[run];
+            bufferPointer = (bufferPointer + 1) % 5;
+            lengthBuffer[bufferPointer] = end - start;
+            //dark run followed by a light point
+            if (run < lastRun && dark && checkPattern(lengthBuffer, bufferPointer, decimalPoint)) { //detected pattern
+                //obtain coordinates of both side of the detected pattern
+                int first = end;
+                for (int j = 0; j < 5; j++) {
+                    first -= lengthBuffer[j];
+                }
+                if (horizontal)
+                    lineAcross.addElement(new Line(first, position, end - 1, position));
+                else
+                    lineAcross.addElement(new Line(position, first, position, end - 1));
+            }
+            start = end;
+        }
     }
 
-    static boolean checkPattern(int[] buffer, int pointer) {
-        final int[] modelRatio = {1, 1, 3, 1, 1};
+    static final int[] MODEL_RATIO = {1, 1, 3, 1, 1};
+
+    static boolean checkPattern(int[] buffer, int pointer, int decimalPoint) {
+        final int[] modelRatio = MODEL_RATIO;
 
         int baselength = 0;
         for (int i = 0; i < 5; i++) {
             baselength += buffer[i];
         }
         // pseudo fixed point calculation. I think it needs smarter code
-        baselength <<= QRCodeImageReader.DECIMAL_POINT;
+        baselength <<= decimalPoint;
         baselength /= 7;
         for (int i = 0; i < 5; i++) {
             int leastlength = baselength * modelRatio[i] - baselength / 2;
@@ -216,7 +506,7 @@ public class FinderPattern {
 
             //TODO rough finder pattern detection
 
-            int targetlength = buffer[(pointer + i + 1) % 5] << QRCodeImageReader.DECIMAL_POINT;
+            int targetlength = buffer[(pointer + i + 1) % 5] << decimalPoint;
             if (targetlength < leastlength || targetlength > mostlength) {
                 return false;
             }
@@ -226,63 +516,104 @@ public class FinderPattern {
 
 
     //obtain lines cross at the center of Finder Patterns
-
+    /*
+     * Chains of neighbour lines (one per row, or per column) are followed from each
+     * candidate through an index of the lines: findLineAcross returns the rows in order
+     * then the columns in order, each line ordered by its start, so the lines of the
+     * next row or column are found by binary search instead of comparing all pairs.
+     * A chain across a Finder Pattern is bigger than 1/6 of the length of its lines
+     * (1/5 when it ends with the last candidate); its middle line is kept and all its
+     * lines are dropped from the candidates, along with the next candidate.
+     */
     static Line[] findLineCross(Line[] lineAcross) {
-        Vector crossLines = new Vector();
-        Vector lineNeighbor = new Vector();
-        Vector lineCandidate = new Vector();
-        Line compareLine;
-        for (int i = 0; i < lineAcross.length; i++)
-            lineCandidate.addElement(lineAcross[i]);
-
-        for (int i = 0; i < lineCandidate.size() - 1; i++) {
-            lineNeighbor.removeAllElements();
-            lineNeighbor.addElement(lineCandidate.elementAt(i));
-            for (int j = i + 1; j < lineCandidate.size(); j++) {
-                if (Line.isNeighbor((Line) lineNeighbor.lastElement(), (Line) lineCandidate.elementAt(j))) {
-                    lineNeighbor.addElement(lineCandidate.elementAt(j));
-                    compareLine = (Line) lineNeighbor.lastElement();
-                    if (lineNeighbor.size() * 5 > compareLine.getLength() &&
-                            j == lineCandidate.size() - 1) {
-                        crossLines.addElement(lineNeighbor.elementAt(lineNeighbor.size() / 2));
-                        for (int k = 0; k < lineNeighbor.size(); k++)
-                            lineCandidate.removeElement(lineNeighbor.elementAt(k));
-                    }
-                }
-                //terminate comparison if there are no possibility for found neighbour lines
-                else if (cantNeighbor((Line) lineNeighbor.lastElement(), (Line) lineCandidate.elementAt(j)) ||
-                        (j == lineCandidate.size() - 1)) {
-                    compareLine = (Line) lineNeighbor.lastElement();
-                    /*
-                     * determine lines across Finder Patterns when number of neighbour lines are
-                     * bigger than 1/6 length of theirselves
-                     */
-                    if (lineNeighbor.size() * 6 > compareLine.getLength()) {
-                        crossLines.addElement(lineNeighbor.elementAt(lineNeighbor.size() / 2));
-                        for (int k = 0; k < lineNeighbor.size(); k++) {
-                            lineCandidate.removeElement(lineNeighbor.elementAt(k));
-                        }
-                    }
+        int numLines = lineAcross.length;
+        // row (or column) of each line, and its extent along it
+        int[] position = new int[numLines];
+        int[] start = new int[numLines];
+        int[] end = new int[numLines];
+        int numHorizontal = 0;
+        for (int i = 0; i < numLines; i++) {
+            Point p1 = lineAcross[i].getP1();
+            Point p2 = lineAcross[i].getP2();
+            if (lineAcross[i].isHorizontal()) {
+                numHorizontal = i + 1;
+                position[i] = p1.getY();
+                start[i] = p1.getX();
+                end[i] = p2.getX();
+            } else {
+                position[i] = p1.getX();
+                start[i] = p1.getY();
+                end[i] = p2.getY();
+            }
+        }
+
+        Vector<Line> crossLines = new Vector<>();
+        boolean[] removed = new boolean[numLines];
+        int[] chain = new int[16];
+        int lastCandidate = numLines - 1;
+        int i = 0;
+        while (i < lastCandidate) {
+            int groupEnd = i < numHorizontal ? numHorizontal : numLines;
+            int chainLength = 0;
+            chain[chainLength++] = i;
+            int last = i;
+            int minLength = 6;
+            while (true) {
+                int next = findNeighbor(last, groupEnd, position, start, end, removed);
+                if (next < 0)
+                    break;
+                if (chainLength == chain.length)
+                    chain = Arrays.copyOf(chain, chainLength * 2);
+                chain[chainLength++] = next;
+                last = next;
+                if (next == lastCandidate) {
+                    minLength = 5;
                     break;
                 }
             }
+            if (chainLength * minLength > lineAcross[last].getLength()) {
+                crossLines.addElement(lineAcross[chain[chainLength / 2]]);
+                for (int k = 0; k < chainLength; k++)
+                    removed[chain[k]] = true;
+                while (lastCandidate >= 0 && removed[lastCandidate])
+                    lastCandidate--;
+                i = nextCandidate(i, removed);
+            }
+            i = nextCandidate(i, removed);
         }
 
-        Line[] foundLines = new Line[crossLines.size()];
-        for (int i = 0; i < foundLines.length; i++) {
-            foundLines[i] = (Line) crossLines.elementAt(i);
-        }
-        return foundLines;
+        return crossLines.toArray(new Line[0]);
+    }
+
+    static int nextCandidate(int i, boolean[] removed) {
+        i++;
+        while (i < removed.length && removed[i])
+            i++;
+        return i;
     }
 
-    static boolean cantNeighbor(Line line1, Line line2) {
-        if (Line.isCross(line1, line2))
-            return true;
-        return line1.isHorizontal() ? Math.abs(line1.getP1().getY() - line2.getP1().getY()) > 1 : Math.abs(line1.getP1().getX() - line2.getP1().getX()) > 1;
+    // first remaining line of the next row (or column) before groupEnd whose ends are both within 1 of the line's
+    static int findNeighbor(int line, int groupEnd, int[] position, int[] start, int[] end, boolean[] removed) {
+        int target = position[line] + 1;
+        // first line of the next row, or further, starting at start - 1 or further
+        int low = line + 1;
+        int high = groupEnd;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (position[middle] < target || (position[middle] == target && start[middle] < start[line] - 1))
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        for (int k = low; k < groupEnd && position[k] == target && start[k] <= start[line] + 1; k++) {
+            if (!removed[k] && Math.abs(end[k] - end[line]) < 2)
+                return k;
+        }
+        return -1;
     }
 
     //obtain slope of symbol
-    static int[] getAngle(Point[] centers) {
+    static int[] getAngle(Point[] centers, int decimalPoint) {
 
         Line[] additionalLine = new Line[3];
 
@@ -294,8 +625,8 @@ public class FinderPattern {
         Line remoteLine = Line.getLongest(additionalLine);
         Point originPoint = new Point();
         for (int i = 0; i < centers.length; i++) {
-            if (remoteLine.getP1().equals(centers[i]) &&
-                    remoteLine.getP2().equals(centers[i])) {
+            if (!remoteLine.getP1().equals(centers[i]) &&
+                    !remoteLine.getP2().equals(centers[i])) {
                 originPoint = centers[i];
                 break;
             }
@@ -332,47 +663,64 @@ public class FinderPattern {
         int r = new Line(originPoint, remotePoint).getLength();
         //canvas.println(Integer.toString(((remotePoint.getX() - originPoint.getX()) << QRCodeImageReader.DECIMAL_POINT)));
         int angle[] = new int[2];
-        angle[0] = ((remotePoint.getY() - originPoint.getY()) << QRCodeImageReader.DECIMAL_POINT) / r; //Sin
-        angle[1] = ((remotePoint.getX() - originPoint.getX()) << (QRCodeImageReader.DECIMAL_POINT)) / r; //Cos
+        angle[0] = ((remotePoint.getY() - originPoint.getY()) << decimalPoint) / r; //Sin
+        angle[1] = ((remotePoint.getX() - originPoint.getX()) << decimalPoint) / r; //Cos
 
         return angle;
     }
 
-    static Point[] getCenter(Line[] crossLines)
-            throws FinderPatternNotFoundException {
-        Vector centers = new Vector();
-        for (int i = 0; i < crossLines.length - 1; i++) {
-            Line compareLine = crossLines[i];
-            for (int j = i + 1; j < crossLines.length; j++) {
-                Line comparedLine = crossLines[j];
-                if (Line.isCross(compareLine, comparedLine)) {
-                    int x = 0;
-                    int y = 0;
-                    if (compareLine.isHorizontal()) {
-                        x = compareLine.getCenter().getX();
-                        y = comparedLine.getCenter().getY();
-                    } else {
-                        x = comparedLine.getCenter().getX();
-                        y = compareLine.getCenter().getY();
-                    }
-                    centers.addElement(new Point(x, y));
-                }
+    /*
+     * Returns up to limit crossings of a horizontal and a vertical line, as the indexes
+     * of both lines, in the order of the horizontal lines then of the vertical ones.
+     * They are found by sweeping the rows: vertical lines are kept by column while they
+     * span the current row, so each horizontal line only meets the vertical lines inside it.
+     */
+    static Vector<int[]> getCrossings(Line[] crossLines, int limit) {
+        int numHorizontal = 0;
+        while (numHorizontal < crossLines.length && crossLines[numHorizontal].isHorizontal())
+            numHorizontal++;
+        int numVertical = crossLines.length - numHorizontal;
+
+        // horizontal lines in the order of their row, vertical lines in the order of their top, then of their bottom
+        Integer[] byRow = new Integer[numHorizontal];
+        for (int i = 0; i < numHorizontal; i++)
+            byRow[i] = i;
+        Arrays.sort(byRow, Comparator.comparingInt(i -> crossLines[i].getP1().getY()));
+        Integer[] byTop = new Integer[numVertical];
+        Integer[] byBottom = new Integer[numVertical];
+        for (int i = 0; i < numVertical; i++)
+            byTop[i] = byBottom[i] = numHorizontal + i;
+        Arrays.sort(byTop, Comparator.comparingInt(i -> crossLines[i].getP1().getY()));
+        Arrays.sort(byBottom, Comparator.comparingInt(i -> crossLines[i].getP2().getY()));
+
+        // column << 32 | index of the vertical lines spanning the current row, strictly
+        TreeSet<Long> spanning = new TreeSet<>();
+        Vector<int[]> crossings = new Vector<>();
+        int top = 0;
+        int bottom = 0;
+        for (int k = 0; k < numHorizontal && crossings.size() < limit; k++) {
+            int i = byRow[k];
+            Point p1 = crossLines[i].getP1();
+            Point p2 = crossLines[i].getP2();
+            int y = p1.getY();
+            while (top < numVertical && crossLines[byTop[top]].getP1().getY() < y) {
+                spanning.add((long) crossLines[byTop[top]].getP1().getX() << 32 | byTop[top]);
+                top++;
+            }
+            while (bottom < numVertical && crossLines[byBottom[bottom]].getP2().getY() <= y) {
+                spanning.remove((long) crossLines[byBottom[bottom]].getP1().getX() << 32 | byBottom[bottom]);
+                bottom++;
+            }
+            for (long column : spanning.subSet((long) (p1.getX() + 1) << 32, (long) p2.getX() << 32)) {
+                crossings.addElement(new int[]{i, (int) column});
+                if (crossings.size() == limit)
+                    break;
             }
         }
 
-        Point[] foundPoints = new Point[centers.size()];
-
-        for (int i = 0; i < foundPoints.length; i++) {
-            foundPoints[i] = (Point) centers.elementAt(i);
-            //System.out.println(foundPoints[i]);
-        }
-        //System.out.println(foundPoints.length);
-
-        if (foundPoints.length == 3) {
-            canvas.drawPolygon(foundPoints, Color.RED);
-            return foundPoints;
-        } else
-            throw new FinderPatternNotFoundException("Invalid number of Finder Pattern detected");
+        // in the order of the horizontal lines, then of the vertical lines
+        crossings.sort(Comparator.comparingInt((int[] c) -> c[0]).thenComparingInt(c -> c[1]));
+        return crossings;
     }
 
     //sort center of finder patterns as Left-Up: points[0], Right-Up: points[1], Left-Down: points[2].
@@ -402,8 +750,8 @@ public class FinderPattern {
 
         //last of centers is Left-Up patterns one
         for (int i = 0; i < centers.length; i++) {
-            if (centers[i].equals(sortedCenters[1]) &&
-                    centers[i].equals(sortedCenters[2])) {
+            if (!centers[i].equals(sortedCenters[1]) &&
+                    !centers[i].equals(sortedCenters[2])) {
                 sortedCenters[0] = centers[i];
             }
         }
@@ -499,28 +847,43 @@ public class FinderPattern {
         return sidePoint;
     }
 
-    static int[] getWidth(boolean[][] image, Point[] centers, int[] sincos)
+    // width of each finder pattern along its row, from the left edge of the second dark run
+    // on the left of the center to the right edge of the second dark run on its right
+    static int[] getWidth(RunLengthMatrix runs, Point[] centers, int[] sincos)
             throws ArrayIndexOutOfBoundsException {
 
         int[] width = new int[3];
+        int[] ends = runs.getEnds(true);
 
         for (int i = 0; i < 3; i++) {
-            boolean flag = false;
-            int lx, rx;
             int y = centers[i].getY();
-            for (lx = centers[i].getX(); lx >= 0; lx--) {
-                if (image[lx][y] == QRCodeImageReader.POINT_DARK &&
-                        image[lx - 1][y] == QRCodeImageReader.POINT_LIGHT) {
-                    if (flag == false) flag = true;
-                    else break;
+            int center = runs.getRun(true, y, centers[i].getX());
+            int firstRun = runs.getOffset(true, y);
+            int lastRun = runs.getOffset(true, y + 1) - 1;
+            boolean centerDark = runs.isDark(true, y, center);
+
+            int lx = -1;
+            int found = 0;
+            for (int run = center; run >= firstRun; run--) {
+                if (centerDark == ((center - run & 1) == 0)) { // dark run
+                    if (run == firstRun)
+                        throw new ArrayIndexOutOfBoundsException("Finder pattern reached the left edge");
+                    if (++found == 2) {
+                        lx = ends[run - 1];
+                        break;
+                    }
                 }
             }
-            flag = false;
-            for (rx = centers[i].getX(); rx < image.length; rx++) {
-                if (image[rx][y] == QRCodeImageReader.POINT_DARK &&
-                        image[rx + 1][y] == QRCodeImageReader.POINT_LIGHT) {
-                    if (flag == false) flag = true;
-                    else break;
+            int rx = runs.getWidth();
+            found = 0;
+            for (int run = center; run <= lastRun; run++) {
+                if (centerDark == ((run - center & 1) == 0)) { // dark run
+                    if (run == lastRun)
+                        throw new ArrayIndexOutOfBoundsException("Finder pattern reached the right edge");
+                    if (++found == 2) {
+                        rx = ends[run] - 1;
+                        break;
+                    }
                 }
             }
             width[i] = (rx - lx + 1);
@@ -528,8 +891,8 @@ public class FinderPattern {
         return width;
     }
 
-    static int calcRoughVersion(Point[] center, int[] width) {
-        final int dp = QRCodeImageReader.DECIMAL_POINT;
+    static int calcRoughVersion(Point[] center, int[] width, int decimalPoint) {
+        final int dp = decimalPoint;
         int lengthAdditionalLine = (new Line(center[UL], center[UR]).getLength()) << dp;
         int avarageWidth = ((width[UL] + width[UR]) << dp) / 14;
         int roughVersion = ((lengthAdditionalLine / avarageWidth) - 10) / 4;
@@ -542,65 +905,59 @@ public class FinderPattern {
 
     }
 
-    static int calcExactVersion(Point[] centers, int[] angle, int[] moduleSize, boolean[][] image)
-            throws InvalidVersionInfoException, InvalidVersionException {
-        boolean[] versionInformation = new boolean[18];
-        Point[] points = new Point[18];
-        Point target;
-        Axis axis = new Axis(angle, moduleSize[UR]); //UR
+    /*
+     * Reads the version information next to the UR and DL patterns and returns
+     * {version, errors, confidence}: the version whose information differs from either block
+     * in the least bits, that number of bits, and how many more differ for the next version.
+     */
+    static int[] calcExactVersion(Point[] centers, int[] angle, int[] moduleSize, BitMatrix image, int decimalPoint) {
+        Axis axis = new Axis(angle, moduleSize[UR], decimalPoint); //UR
         axis.setOrigin(centers[UR]);
+        int upperRight = readVersionInfo(axis, true, image);
+        axis.setOrigin(centers[DL]);
+        axis.setModulePitch(moduleSize[DL]); //DL
+        int lowerLeft = readVersionInfo(axis, false, image);
+        return checkVersionInfo(new int[]{upperRight, lowerLeft});
+    }
 
-        for (int y = 0; y < 6; y++) {
-            for (int x = 0; x < 3; x++) {
-                target = axis.translate(x - 7, y - 3);
-                versionInformation[x + y * 3] = image[target.getX()][target.getY()];
-                points[x + y * 3] = target;
-            }
-        }
-        canvas.drawPoints(points, Color.RED);
-
-        int exactVersion = 0;
-        try {
-            exactVersion = checkVersionInfo(versionInformation);
-        } catch (InvalidVersionInfoException e) {
-            canvas.println("Version info error. now retry with other place one.");
-            axis.setOrigin(centers[DL]);
-            axis.setModulePitch(moduleSize[DL]); //DL
-
-            for (int x = 0; x < 6; x++) {
-                for (int y = 0; y < 3; y++) {
-                    target = axis.translate(x - 3, y - 7);
-                    versionInformation[y + x * 3] = image[target.getX()][target.getY()];
-                    points[x + y * 3] = target;
-                }
-            }
-            canvas.drawPoints(points, Color.RED);
-
-            try {
-                exactVersion = checkVersionInfo(versionInformation);
-            } catch (VersionInformationException e2) {
-                throw e2;
-            }
+    // bit i of the version information at row i / 3, column i % 3 of the UR block (transposed in the DL block),
+    // or -1 when the block is not inside the image
+    static int readVersionInfo(Axis axis, boolean upperRight, BitMatrix image) {
+        Point[] points = new Point[18];
+        int versionInformation = 0;
+        for (int i = 0; i < 18; i++) {
+            points[i] = upperRight ? axis.translate(i % 3 - 7, i / 3 - 3) : axis.translate(i / 3 - 3, i % 3 - 7);
+            int x = points[i].getX();
+            int y = points[i].getY();
+            if (x < 0 || y < 0 || x >= image.getWidth() || y >= image.getHeight())
+                return -1;
+            if (image.get(x, y))
+                versionInformation |= 1 << i;
         }
-        return exactVersion;
+        canvas.drawPoints(points, Color.RED.getValue());
+        return versionInformation;
     }
 
-    static int checkVersionInfo(boolean[] target)
-            throws InvalidVersionInfoException {
+    static int[] checkVersionInfo(int[] blocks) {
         // note that this method includes BCH 18-6 Error Correction
         // see page 67 on JIS-X-0510(2004)
-        int errorCount = 0, versionBase;
-        for (versionBase = 0; versionBase < VersionInfoBit.length; versionBase++) {
-            errorCount = 0;
-            for (int j = 0; j < 18; j++) {
-                if (target[j] ^ (VersionInfoBit[versionBase] >> j) % 2 == 1)
-                    errorCount++;
+        int bestVersion = 0;
+        int leastErrors = 18;
+        int nextErrors = 18;
+        for (int versionBase = 0; versionBase < VersionInfoBit.length; versionBase++) {
+            int errors = 18;
+            for (int block : blocks) {
+                if (block >= 0)
+                    errors = Math.min(errors, Integer.bitCount(block ^ VersionInfoBit[versionBase]));
+            }
+            if (errors < leastErrors) {
+                nextErrors = leastErrors;
+                leastErrors = errors;
+                bestVersion = 7 + versionBase;
+            } else if (errors < nextErrors) {
+                nextErrors = errors;
             }
-            if (errorCount <= 3) break;
         }
-        if (errorCount <= 3)
-            return 7 + versionBase;
-        else
-            throw new InvalidVersionInfoException("Too many errors in version information");
+        return new int[]{bestVersion, leastErrors, nextErrors - leastErrors};
     }
 }
@@ -0,0 +1,221 @@
+package jp.sourceforge.qrcode.reader;
+
+import jp.sourceforge.qrcode.data.BitMatrix;
+import jp.sourceforge.qrcode.data.DecoderWorkspace;
+import jp.sourceforge.qrcode.data.LuminancePlane;
+import jp.sourceforge.qrcode.data.QRCodeImage;
+import jp.sourceforge.qrcode.util.QRCodeUtility;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Binarizes an image with one threshold per area of a 4x4 grid,
+ * the middle brightness ((min + max) / 2) of the area.
+ * <p>
+ * The first pass converts each row to luminance and updates the minimum and
+ * maximum of the areas it crosses while the row is still in cache; the second
+ * pass compares the plane against the area thresholds.
+ * Images that already are a {@link LuminancePlane}, or can be wrapped as one
+ * (see {@link LuminancePlane#wrap}), skip the conversion; the rows of a plane
+ * lying in a direct buffer are read from it in place, one at a time.
+ * <p>
+ * Given a ForkJoinPool, both passes run as bands of rows in parallel, the area
+ * extremes of the bands being merged before the second pass.
+ */
+public class AreaBinarizer implements Binarizer {
+    public static final int NUM_SQRT_AREA = 4;
+    public static final int DEFAULT_TILE_HEIGHT = 256;
+
+    final ForkJoinPool pool;
+    final int tileHeight;
+    LuminancePlane luminance;
+
+    /**
+     * Creates a binarizer running on the calling thread
+     */
+    public AreaBinarizer() {
+        this(null, DEFAULT_TILE_HEIGHT);
+    }
+
+    /**
+     * Creates a binarizer splitting both passes into bands of tileHeight rows run on the pool,
+     * whose parallelism bounds the number of bands processed at once.
+     * The bitmap is the same as the sequential one, bit for bit, but the images
+     * must then allow concurrent reads of different rows.
+     *
+     * @param pool       pool running the bands, null to run on the calling thread
+     * @param tileHeight number of rows of a band
+     */
+    public AreaBinarizer(ForkJoinPool pool, int tileHeight) {
+        if (tileHeight < 1)
+            throw new IllegalArgumentException("Tile height must be greater than 0");
+        this.pool = pool;
+        this.tileHeight = tileHeight;
+    }
+
+    @Override
+    public BitMatrix binarize(QRCodeImage image, DecoderWorkspace workspace) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        luminance = LuminancePlane.wrap(image);
+        boolean convert = luminance == null;
+        if (convert)
+            luminance = workspace.getPlane(0, width, height);
+        Pass pass = new Pass(image, convert, workspace.getBitMatrix(width, height));
+        boolean parallel = pool != null && height > tileHeight;
+
+        int[] extremes = parallel ? pool.invoke(pass.new ScanTask(0, height)) : pass.scan(0, height);
+        for (int i = 0; i < pass.middle.length; i++)
+            pass.middle[i] = (extremes[i] + extremes[pass.middle.length + i]) / 2;
+
+        // pixels right of or below the last whole area are left light
+        int areaRows = pass.areaHeight * NUM_SQRT_AREA;
+        if (parallel)
+            pool.invoke(pass.new ThresholdTask(0, areaRows));
+        else
+            pass.threshold(0, areaRows, workspace.getWords(0, pass.bitmap.getRowSize()));
+        return pass.bitmap;
+    }
+
+    /**
+     * State of one binarization, shared by the bands
+     */
+    class Pass {
+        final QRCodeImage image;
+        final boolean convert;
+        final int width;
+        final int areaWidth;
+        final int areaHeight;
+        final LuminancePlane plane;
+        // null when the plane lies in a direct buffer
+        final byte[] data;
+        final int stride;
+        final int offset;
+        final int[] middle = new int[NUM_SQRT_AREA * NUM_SQRT_AREA];
+        final BitMatrix bitmap;
+
+        Pass(QRCodeImage image, boolean convert, BitMatrix bitmap) {
+            this.image = image;
+            this.convert = convert;
+            this.width = image.getWidth();
+            this.areaWidth = width / NUM_SQRT_AREA;
+            this.areaHeight = image.getHeight() / NUM_SQRT_AREA;
+            this.plane = luminance;
+            this.data = luminance.getData();
+            this.stride = luminance.getStride();
+            this.offset = luminance.getOffset();
+            this.bitmap = bitmap;
+        }
+
+        /**
+         * Converts rows from to to - 1 when needed and returns the minimum (first half)
+         * and maximum (second half) luminance of the areas over these rows
+         */
+        int[] scan(int from, int to) {
+            int numAreas = NUM_SQRT_AREA * NUM_SQRT_AREA;
+            int[] extremes = new int[numAreas * 2];
+            Arrays.fill(extremes, 0, numAreas, 0xFF);
+            byte[] source = data != null ? data : new byte[width];
+            for (int y = from; y < to; y++) {
+                int row = offset + y * stride;
+                if (convert)
+                    image.getLuminance(0, y, width, data, row);
+                if (y >= areaHeight * NUM_SQRT_AREA)
+                    continue;
+                if (data == null) {
+                    plane.getLuminance(0, y, width, source, 0);
+                    row = 0;
+                }
+                int area = (y / areaHeight) * NUM_SQRT_AREA;
+                for (int ax = 0; ax < NUM_SQRT_AREA; ax++, area++) {
+                    int areaMin = extremes[area];
+                    int areaMax = extremes[numAreas + area];
+                    for (int x = areaWidth * ax; x < areaWidth * (ax + 1); x++) {
+                        int target = source[row + x] & 0xFF;
+                        if (target < areaMin) areaMin = target;
+                        if (target > areaMax) areaMax = target;
+                    }
+                    extremes[area] = areaMin;
+                    extremes[numAreas + area] = areaMax;
+                }
+            }
+            return extremes;
+        }
+
+        void threshold(int from, int to, long[] words) {
+            byte[] source = data != null ? data : new byte[width];
+            for (int y = from; y < to; y++) {
+                int row = offset + y * stride;
+                if (data == null) {
+                    plane.getLuminance(0, y, width, source, 0);
+                    row = 0;
+                }
+                int area = (y / areaHeight) * NUM_SQRT_AREA;
+                Arrays.fill(words, 0L);
+                for (int ax = 0; ax < NUM_SQRT_AREA; ax++, area++) {
+                    int x = areaWidth * ax;
+                    QRCodeUtility.threshold(source, row + x, areaWidth, middle[area], words, x);
+                }
+                bitmap.setRow(y, words);
+            }
+        }
+
+        @SuppressWarnings("serial")
+        class ScanTask extends RecursiveTask<int[]> {
+            final int from;
+            final int to;
+
+            ScanTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected int[] compute() {
+                if (to - from <= tileHeight)
+                    return scan(from, to);
+                int half = (from + to) >>> 1;
+                ScanTask lower = new ScanTask(half, to);
+                lower.fork();
+                int[] extremes = new ScanTask(from, half).compute();
+                int[] lowerExtremes = lower.join();
+                int numAreas = NUM_SQRT_AREA * NUM_SQRT_AREA;
+                for (int i = 0; i < numAreas; i++) {
+                    extremes[i] = Math.min(extremes[i], lowerExtremes[i]);
+                    extremes[numAreas + i] = Math.max(extremes[numAreas + i], lowerExtremes[numAreas + i]);
+                }
+                return extremes;
+            }
+        }
+
+        // bands hold whole rows, so no two of them write the same word of the bitmap
+        @SuppressWarnings("serial")
+        class ThresholdTask extends RecursiveAction {
+            final int from;
+            final int to;
+
+            ThresholdTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= tileHeight) {
+                    threshold(from, to, new long[bitmap.getRowSize()]);
+                    return;
+                }
+                int half = (from + to) >>> 1;
+                invokeAll(new ThresholdTask(from, half), new ThresholdTask(half, to));
+            }
+        }
+    }
+
+    @Override
+    public LuminancePlane getLuminance() {
+        return luminance;
+    }
+}
@@ -0,0 +1,29 @@
+package jp.sourceforge.qrcode.reader;
+
+import jp.sourceforge.qrcode.data.BitMatrix;
+import jp.sourceforge.qrcode.data.DecoderWorkspace;
+import jp.sourceforge.qrcode.data.LuminancePlane;
+import jp.sourceforge.qrcode.data.QRCodeImage;
+
+/**
+ * Strategy used by {@link QRCodeImageReader} to turn an image into a bitmap of dark points
+ */
+public interface Binarizer {
+    /**
+     * Binarizes the image, a set bit being a dark point
+     */
+    public default BitMatrix binarize(QRCodeImage image) {
+        return binarize(image, new DecoderWorkspace());
+    }
+
+    /**
+     * Binarizes the image into the bitmap of the workspace, converting it
+     * into the level 0 plane of the workspace when it is not a plane
+     */
+    public BitMatrix binarize(QRCodeImage image, DecoderWorkspace workspace);
+
+    /**
+     * Returns the luminance plane of the last binarized image
+     */
+    public LuminancePlane getLuminance();
+}
@@ -1,7 +1,9 @@
 package jp.sourceforge.qrcode.reader;
 
 
+import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
 
 import jp.sourceforge.qrcode.QRCodeDecoder;
 import jp.sourceforge.qrcode.data.*;
@@ -16,150 +18,412 @@ import jp.sourceforge.qrcode.util.*;
 
 public class QRCodeImageReader {
     DebugCanvas canvas;
-    //DP =
-    //23 ...side pixels of image will be limited maximum 255 (8 bits)
-    //22 .. side pixels of image will be limited maximum 511 (9 bits)
-    //21 .. side pixels of image will be limited maximum 1023 (10 bits)
-
-    //I think it's good idea to use DECIMAL_POINT with type "long" too.
-
-    public static int DECIMAL_POINT = 21;
     public static final boolean POINT_DARK = true;
     public static final boolean POINT_LIGHT = false;
+    // images with a long side from this size are first searched on a luminance pyramid
+    public static final int PYRAMID_MIN_SIDE = 1024;
+    static final int PYRAMID_MAX_LEVEL = 3;
+    static final int PYRAMID_MIN_LEVEL_SIDE = 256;
+    // pixels per module above which a symbol is sampled on a coarser level
+    static final int MAX_MODULE_SIZE = 16;
     SamplingGrid samplingGrid;
-    boolean[][] bitmap;
+    // the offset getQRCodeSymbolWithAdjustedGrid has moved the grid by so far
+    int gridAdjustX;
+    int gridAdjustY;
+    Binarizer binarizer;
+    DecoderWorkspace workspace;
+    BitMatrix bitmap;
+    // runs of the bitmap, shared by the pattern searches
+    RunLengthMatrix runs;
+    FinderPattern finderPattern;
+    // smallest module size searched for, in pixels of the image, 0 to search all
+    int minModuleSize;
+    // whether alignment patterns are refined by template matching on the luminance
+    boolean templateAlignment;
+    // pool refining the alignment patterns of large symbols, null to refine them one by one
+    ForkJoinPool pool;
+    // position and scale of the bitmap in the image
+    int regionX;
+    int regionY;
+    int regionScale = 1;
     //int numModuleAtSide; //デコード対象のシンボルにおける一辺のモジュールの数
 
 
     public QRCodeImageReader() {
+        this(new AreaBinarizer());
+    }
+
+    public QRCodeImageReader(Binarizer binarizer) {
+        this(binarizer, new DecoderWorkspace());
+    }
+
+    /**
+     * Creates a reader taking its scratch buffers from the workspace.
+     * The symbols it returns share the module matrix of the workspace,
+     * so each one is valid until the next symbol is read.
+     */
+    public QRCodeImageReader(Binarizer binarizer, DecoderWorkspace workspace) {
         this.canvas = QRCodeDecoder.getCanvas();
+        this.binarizer = binarizer;
+        this.workspace = workspace;
     }
 
-    // local class for module pitch
-    protected static class ModulePitch {
-        public int top;
-        public int left;
-        public int bottom;
-        public int right;
+    public DecoderWorkspace getWorkspace() {
+        return workspace;
     }
 
-    boolean[][] applyCrossMaskingMedianFilter(boolean[][] image) {
-        boolean[][] filteredMatrix = new boolean[image.length][image[0].length];
-        //filtering noise in image with median filter
-        int numPointDark;
-        for (int y = 2; y < image[0].length - 2; y++) {
-            for (int x = 2; x < image.length - 2; x++) {
-                //if (image[x][y] == true) {
-                numPointDark = 0;
-                for (int f = -2; f < 3; f++) {
-                    if (image[x + f][y])
-                        numPointDark++;
-
-                    if (image[x][y + f])
-                        numPointDark++;
-                }
+    /**
+     * Sets the smallest module size of the symbols to find, in pixels of the image.
+     * From 1, finder patterns are first searched on one row and column out of
+     * 2 * minModuleSize, then on all of those around the patterns crossed.
+     * 0, the default, searches all the rows and columns.
+     */
+    public void setMinModuleSize(int minModuleSize) {
+        if (minModuleSize < 0)
+            throw new IllegalArgumentException("Minimum module size must not be negative");
+        this.minModuleSize = minModuleSize;
+    }
+
+    /**
+     * Sets whether the centers of the alignment patterns are refined by matching a template
+     * on the luminance of the image, at a fixed cost per pattern, instead of following
+     * the edges of the bitmap, the default.
+     * See {@link AlignmentPattern#findAlignmentPattern(RunLengthMatrix, LuminancePlane, FinderPattern)}.
+     */
+    public void setTemplateAlignment(boolean templateAlignment) {
+        this.templateAlignment = templateAlignment;
+    }
 
-                if (numPointDark > 5)
-                    filteredMatrix[x][y] = POINT_DARK;
+    /**
+     * Sets the pool on which the alignment patterns of symbols from version 14 are refined
+     * at the same time, null to refine them one after the other as by default.
+     * See {@link AlignmentPattern#findAlignmentPattern(RunLengthMatrix, LuminancePlane, FinderPattern, ForkJoinPool)}.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Filters noise out of the bitmap in place: a pixel becomes dark when more than 5
+     * of the 10 samples of the cross 2 pixels around it are, the center counting twice.
+     * Pixels closer than 2 to the border become light.
+     * <p>
+     * The samples of 64 pixels are added at once with bitwise full adders over the
+     * packed words of the 5 rows under the cross, the only rows kept aside.
+     */
+    BitMatrix applyCrossMaskingMedianFilter(BitMatrix image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowSize = image.getRowSize();
+        long[] filtered = workspace.getWords(5, rowSize);
+        if (width < 5 || height < 5) {
+            for (int y = 0; y < height; y++)
+                image.setRow(y, filtered);
+            return image;
+        }
+        long[] mask = workspace.getWords(6, rowSize);
+        for (int x = 2; x < width - 2; x++)
+            mask[x >> 6] |= 1L << x;
+
+        // rows[y % 5] holds the original row y
+        long[][] rows = new long[5][];
+        for (int y = 0; y < 5; y++)
+            rows[y] = workspace.getWords(y, rowSize);
+        for (int y = 0; y < 4; y++)
+            image.getRow(y, rows[y]);
+        for (int y = 2; y < height - 2; y++) {
+            rows[(y + 2) % 5] = image.getRow(y + 2, rows[(y + 2) % 5]);
+            long[] up2 = rows[(y - 2) % 5], up1 = rows[(y - 1) % 5], row = rows[y % 5],
+                    down1 = rows[(y + 1) % 5], down2 = rows[(y + 2) % 5];
+            for (int i = 0; i < rowSize; i++) {
+                long center = row[i];
+                long previous = i > 0 ? row[i - 1] : 0;
+                long next = i + 1 < rowSize ? row[i + 1] : 0;
+                long left2 = center << 2 | previous >>> 62;
+                long left1 = center << 1 | previous >>> 63;
+                long right1 = center >>> 1 | next << 63;
+                long right2 = center >>> 2 | next << 62;
+                // sum of the 8 other samples as ones + 2 * (carry1 + carry2 + carry3 + carry4)
+                long sum1 = left2 ^ left1 ^ right1;
+                long carry1 = (left2 & left1) | (right1 & (left2 ^ left1));
+                long sum2 = right2 ^ up2[i] ^ up1[i];
+                long carry2 = (right2 & up2[i]) | (up1[i] & (right2 ^ up2[i]));
+                long sum3 = down1[i] ^ down2[i];
+                long carry3 = down1[i] & down2[i];
+                long carry4 = (sum1 & sum2) | (sum3 & (sum1 ^ sum2));
+                // more than 5 in total if at least 3 of the twos (the 4 carries and the center) are set
+                long twos1 = carry1 ^ carry2 ^ carry3;
+                long fours1 = (carry1 & carry2) | (carry3 & (carry1 ^ carry2));
+                long twos2 = carry4 ^ center ^ twos1;
+                long fours2 = (carry4 & center) | (twos1 & (carry4 ^ center));
+                filtered[i] = ((fours1 & fours2) | ((fours1 | fours2) & twos2)) & mask[i];
             }
+            image.setRow(y, filtered);
         }
-
-        return filteredMatrix;
+        Arrays.fill(filtered, 0L);
+        image.setRow(0, filtered);
+        image.setRow(1, filtered);
+        image.setRow(height - 2, filtered);
+        image.setRow(height - 1, filtered);
+        return image;
     }
 
-    boolean[][] filterImage(int[][] image) {
-        imageToGrayScale(image);
-        return grayScaleToBitmap(image);
+    BitMatrix filterImage(QRCodeImage image) {
+        return binarizer.binarize(image, workspace);
     }
 
-    void imageToGrayScale(int[][] image) {
-        for (int y = 0; y < image[0].length; y++) {
-            for (int x = 0; x < image.length; x++) {
-                int r = image[x][y] >> 16 & 0xFF;
-                int g = image[x][y] >> 8 & 0xFF;
-                int b = image[x][y] & 0xFF;
-                int m = (r * 30 + g * 59 + b * 11) / 100;
-                image[x][y] = m;
+    LuminancePlane imageToGrayScale(int[][] image) {
+        int width = image.length;
+        int height = image[0].length;
+        LuminancePlane grayScale = new LuminancePlane(width, height);
+        byte[] data = grayScale.getData();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                data[y * width + x] = (byte) QRCodeUtility.luminance(image[x][y]);
             }
         }
+        return grayScale;
     }
 
-    boolean[][] grayScaleToBitmap(int[][] grayScale) {
-        int[][] middle = getMiddleBrightnessPerArea(grayScale);
-        int sqrtNumArea = middle.length;
-        int areaWidth = grayScale.length / sqrtNumArea;
-        int areaHeight = grayScale[0].length / sqrtNumArea;
-        boolean[][] bitmap = new boolean[grayScale.length][grayScale[0].length];
+    public QRCodeSymbol getQRCodeSymbol(int[][] image)
+            throws SymbolNotFoundException {
+        return getQRCodeSymbol(imageToGrayScale(image));
+    }
 
-        for (int ay = 0; ay < sqrtNumArea; ay++) {
-            for (int ax = 0; ax < sqrtNumArea; ax++) {
-                for (int dy = 0; dy < areaHeight; dy++) {
-                    for (int dx = 0; dx < areaWidth; dx++) {
-                        bitmap[areaWidth * ax + dx][areaHeight * ay + dy] = grayScale[areaWidth * ax + dx][areaHeight * ay + dy] < middle[ax][ay];
-                    }
-                }
-            }
+    /**
+     * Reads the symbol inside a rectangle of the image only, the rest of the image
+     * being neither converted nor scanned. The rectangle is clipped to the image.
+     * {@link #getFinderPatternCenters()} still returns image coordinates.
+     */
+    public QRCodeSymbol getQRCodeSymbol(QRCodeImage image, int x, int y, int width, int height)
+            throws SymbolNotFoundException {
+        int left = Math.max(0, x);
+        int top = Math.max(0, y);
+        int right = Math.min(image.getWidth(), x + width);
+        int bottom = Math.min(image.getHeight(), y + height);
+        if (right <= left || bottom <= top)
+            throw new SymbolNotFoundException("Region is outside the image");
+        LuminancePlane plane = LuminancePlane.wrap(image);
+        QRCodeImage region = plane != null ?
+                plane.crop(left, top, right - left, bottom - top) :
+                new QRCodeImageRegion(image, left, top, right - left, bottom - top);
+        QRCodeSymbol symbol = getQRCodeSymbol(region);
+        regionX += left;
+        regionY += top;
+        return symbol;
+    }
+
+    public QRCodeSymbol getQRCodeSymbol(QRCodeImage image)
+            throws SymbolNotFoundException {
+        regionX = 0;
+        regionY = 0;
+        regionScale = 1;
+        if (Math.max(image.getWidth(), image.getHeight()) < PYRAMID_MIN_SIDE)
+            return readQRCodeSymbol(image);
+
+        LuminancePlane plane = LuminancePlane.of(image, workspace);
+        try {
+            return getQRCodeSymbolFromPyramid(
+                    new LuminancePyramid(plane, PYRAMID_MAX_LEVEL, PYRAMID_MIN_LEVEL_SIDE, workspace));
+        } catch (SymbolNotFoundException | VersionInformationException e) {
+            canvas.println("Not found in the pyramid, now scanning the whole image...");
         }
-        return bitmap;
+        regionX = 0;
+        regionY = 0;
+        regionScale = 1;
+        return readQRCodeSymbol(plane);
     }
 
-    int[][] getMiddleBrightnessPerArea(int[][] image) {
-        final int numSqrtArea = 4;
-        //obtain middle brightness((min + max) / 2) per area
-        int areaWidth = image.length / numSqrtArea;
-        int areaHeight = image[0].length / numSqrtArea;
-        int[][][] minmax = new int[numSqrtArea][numSqrtArea][2];
-        for (int ay = 0; ay < numSqrtArea; ay++) {
-            for (int ax = 0; ax < numSqrtArea; ax++) {
-                minmax[ax][ay][0] = 0xFF;
-                for (int dy = 0; dy < areaHeight; dy++) {
-                    for (int dx = 0; dx < areaWidth; dx++) {
-                        int target = image[areaWidth * ax + dx][areaHeight * ay + dy];
-                        if (target < minmax[ax][ay][0]) minmax[ax][ay][0] = target;
-                        if (target > minmax[ax][ay][1]) minmax[ax][ay][1] = target;
-                    }
-                }
-                //minmax[ax][ay][0] = (minmax[ax][ay][0] + minmax[ax][ay][1]) / 2;
+    /**
+     * Reads the symbol on the whole image. When that fails on a symbol whose modules
+     * are larger than MAX_MODULE_SIZE, reads it again on halved images until they are not.
+     */
+    QRCodeSymbol readQRCodeSymbol(QRCodeImage image)
+            throws SymbolNotFoundException {
+        try {
+            return findQRCodeSymbol(image);
+        } catch (SymbolNotFoundException | VersionInformationException e) {
+            if (!hasLargeModules())
+                throw e;
+        }
+        LuminancePlane plane = binarizer.getLuminance();
+        for (int level = 1; ; level++) {
+            plane = plane.downsample(workspace.getPlane(level, plane.getWidth() >> 1, plane.getHeight() >> 1));
+            regionScale <<= 1;
+            canvas.println("Modules too large, now reading at 1/" + regionScale + " scale...");
+            try {
+                return findQRCodeSymbol(plane);
+            } catch (SymbolNotFoundException | VersionInformationException e) {
+                if (!hasLargeModules())
+                    throw e;
             }
         }
-        int[][] middle = new int[numSqrtArea][numSqrtArea];
-        for (int ay = 0; ay < numSqrtArea; ay++) {
-            for (int ax = 0; ax < numSqrtArea; ax++) {
-                middle[ax][ay] = (minmax[ax][ay][0] + minmax[ax][ay][1]) / 2;
-                //System.out.print(middle[ax][ay] + ",");
+    }
+
+    boolean hasLargeModules() {
+        return finderPattern != null &&
+                (finderPattern.getModuleSize() >> finderPattern.getDecimalPoint()) > MAX_MODULE_SIZE;
+    }
+
+    /**
+     * Locates the finder patterns on the coarsest level of the pyramid where they are found,
+     * then reads the symbol at full resolution inside its bounding box only.
+     * Symbols with modules larger than MAX_MODULE_SIZE are read again on halved
+     * images of the box when that fails (see readQRCodeSymbol).
+     */
+    QRCodeSymbol getQRCodeSymbolFromPyramid(LuminancePyramid pyramid)
+            throws SymbolNotFoundException {
+        for (int level = pyramid.getNumLevels() - 1; level > 0; level--) {
+            LuminancePlane coarse = pyramid.getLevel(level);
+            canvas.println("Scanning Finder Pattern at 1/" + (1 << level) + " scale.");
+            FinderPattern[] coarsePatterns = FinderPattern.findFinderPatternCandidates(
+                    workspace.getRunLengthMatrix(filterImage(coarse)), minModuleSize >> level);
+            if (coarsePatterns.length == 0)
+                continue;
+            FinderPattern coarsePattern = coarsePatterns[0];
+
+            // bounding box of the four corner module centers, in full resolution pixels
+            int half = 1 << level >> 1;
+            Point ul = coarsePattern.getCenter(FinderPattern.UL);
+            Point ur = coarsePattern.getCenter(FinderPattern.UR);
+            Point dl = coarsePattern.getCenter(FinderPattern.DL);
+            int[] xs = {ul.getX(), ur.getX(), dl.getX(), ur.getX() + dl.getX() - ul.getX()};
+            int[] ys = {ul.getY(), ur.getY(), dl.getY(), ur.getY() + dl.getY() - ul.getY()};
+            int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE, right = Integer.MIN_VALUE, bottom = Integer.MIN_VALUE;
+            for (int i = 0; i < 4; i++) {
+                left = Math.min(left, xs[i]);
+                right = Math.max(right, xs[i]);
+                top = Math.min(top, ys[i]);
+                bottom = Math.max(bottom, ys[i]);
             }
-            //System.out.println("");
+            int moduleSize = Math.max(1,
+                    (int) (((long) coarsePattern.getModuleSize() << level) >> coarsePattern.getDecimalPoint()));
+            // finder centers are 3.5 modules inside the symbol, followed by a 4 module quiet zone,
+            // and perspective distortion can push the fourth corner further out
+            int margin = moduleSize * 8 + (Math.max(right - left, bottom - top) << level >> 3);
+            left = (left << level) + half - margin;
+            top = (top << level) + half - margin;
+            right = (right << level) + half + margin;
+            bottom = (bottom << level) + half + margin;
+
+            LuminancePlane plane = pyramid.getLevel(0);
+            int x = Math.max(0, left);
+            int y = Math.max(0, top);
+            int width = Math.min(plane.getWidth(), right + 1) - x;
+            int height = Math.min(plane.getHeight(), bottom + 1) - y;
+            if (width <= 0 || height <= 0)
+                continue;
+            canvas.println("Reading symbol in (" + x + "," + y + ") " + width + "x" + height + ".");
+            regionX = x;
+            regionY = y;
+            regionScale = 1;
+            return readQRCodeSymbol(plane.crop(x, y, width, height));
         }
-        //System.out.println("");
+        throw new SymbolNotFoundException("Finder pattern not found in the pyramid");
+    }
 
-        return middle;
+    /**
+     * Returns the number of fraction bits of the fixed point values of the patterns found
+     * in an image, leaving enough integer bits for its long side: 23 up to 256 pixels
+     * and one less each time the side doubles. It depends on nothing but the size, so
+     * readers on different threads each use the scale of their own image.
+     */
+    public static int getDecimalPoint(int width, int height) {
+        int longSide = Math.max(width, height);
+        return 23 - (32 - Integer.numberOfLeadingZeros((longSide - 1) >> 8));
     }
 
-    public QRCodeSymbol getQRCodeSymbol(int[][] image)
+    QRCodeSymbol findQRCodeSymbol(QRCodeImage image)
             throws SymbolNotFoundException {
-        int longSide = Math.max(image.length, image[0].length);
-        QRCodeImageReader.DECIMAL_POINT = 23 - QRCodeUtility.sqrt(longSide / 256);
         bitmap = filterImage(image);
         canvas.println("Drawing matrix.");
         canvas.drawMatrix(bitmap);
 
         canvas.println("Scanning Finder Pattern.");
-        FinderPattern finderPattern;
+        runs = workspace.getRunLengthMatrix(bitmap);
+        FinderPattern[] candidates = FinderPattern.findFinderPatternCandidates(runs, minModuleSize / regionScale);
+        if (candidates.length == 0) {
+            canvas.println("Not found, now retrying...");
+            bitmap = applyCrossMaskingMedianFilter(bitmap);
+            canvas.drawMatrix(bitmap);
+            runs = workspace.getRunLengthMatrix(bitmap);
+            candidates = FinderPattern.findFinderPatternCandidates(runs, minModuleSize / regionScale);
+            if (candidates.length == 0) {
+                finderPattern = null;
+                throw new SymbolNotFoundException("Finder pattern not found");
+            }
+        }
+
+        // the next best candidate is tried when the symbol of one cannot be read,
+        // the best one being kept when none can
+        IllegalArgumentException failure = null;
+        for (FinderPattern candidate : candidates) {
+            finderPattern = candidate;
+            try {
+                return getQRCodeSymbol();
+            } catch (SymbolNotFoundException | VersionInformationException e) {
+                canvas.println("Finder pattern candidate rejected: " + e.getMessage());
+                failure = e;
+            }
+        }
+        finderPattern = candidates[0];
+        throw failure;
+    }
+
+    /**
+     * Finds all the symbols of the image, scanned whole at full resolution, and returns
+     * a reader for each one, from the best fitting finder patterns.
+     * The readers share the bitmap of this reader and each one has a workspace of its own,
+     * so their symbols can be read with {@link #getQRCodeSymbol()} on different threads
+     * at the same time, as long as this reader reads no other image meanwhile.
+     */
+    public QRCodeImageReader[] getSymbolReaders(QRCodeImage image)
+            throws SymbolNotFoundException {
+        regionX = 0;
+        regionY = 0;
+        regionScale = 1;
+        bitmap = filterImage(image);
+        canvas.println("Drawing matrix.");
+        canvas.drawMatrix(bitmap);
+
+        canvas.println("Scanning Finder Patterns of all symbols.");
+        FinderPattern[] finderPatterns;
         try {
-            finderPattern = FinderPattern.findFinderPattern(bitmap);
+            runs = workspace.getRunLengthMatrix(bitmap);
+            finderPatterns = FinderPattern.findFinderPatterns(runs, minModuleSize);
         } catch (FinderPatternNotFoundException e) {
             canvas.println("Not found, now retrying...");
             bitmap = applyCrossMaskingMedianFilter(bitmap);
             canvas.drawMatrix(bitmap);
             try {
-                finderPattern = FinderPattern.findFinderPattern(bitmap);
-            } catch (FinderPatternNotFoundException | VersionInformationException e2) {
+                runs = workspace.getRunLengthMatrix(bitmap);
+                finderPatterns = FinderPattern.findFinderPatterns(runs, minModuleSize);
+            } catch (FinderPatternNotFoundException e2) {
                 throw new SymbolNotFoundException(e2.getMessage());
             }
-        } catch (VersionInformationException e) {
-            throw new SymbolNotFoundException(e.getMessage());
         }
+        canvas.println(finderPatterns.length + " symbols found.");
+
+        QRCodeImageReader[] readers = new QRCodeImageReader[finderPatterns.length];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new QRCodeImageReader(binarizer, new DecoderWorkspace());
+            readers[i].bitmap = bitmap;
+            readers[i].runs = runs;
+            readers[i].finderPattern = finderPatterns[i];
+            readers[i].templateAlignment = templateAlignment;
+            readers[i].pool = pool;
+        }
+        return readers;
+    }
 
+    /**
+     * Reads the symbol of the finder pattern found last: locates its alignment patterns,
+     * then samples its modules through the grid they give
+     */
+    public QRCodeSymbol getQRCodeSymbol()
+            throws SymbolNotFoundException {
+        if (bitmap == null || finderPattern == null)
+            throw new IllegalStateException("This method must be called after the finder pattern is found");
 
         canvas.println("FinderPattern at");
         String finderPatternCoordinates =
@@ -177,7 +441,8 @@ public class QRCodeImageReader {
 
         AlignmentPattern alignmentPattern;
         try {
-            alignmentPattern = AlignmentPattern.findAlignmentPattern(bitmap, finderPattern);
+            alignmentPattern = AlignmentPattern.findAlignmentPattern(runs,
+                    templateAlignment ? binarizer.getLuminance() : null, finderPattern, pool);
         } catch (AlignmentPatternNotFoundException e) {
             throw new SymbolNotFoundException(e.getMessage());
         }
@@ -197,10 +462,13 @@ public class QRCodeImageReader {
         //[TODO] need all-purpose method
         //samplingGrid = getSamplingGrid2_6(finderPattern, alignmentPattern);
         samplingGrid = getSamplingGrid(finderPattern, alignmentPattern);
+        canvas.println("gridSize=" + samplingGrid.getTotalWidth());
+        gridAdjustX = 0;
+        gridAdjustY = 0;
         canvas.println("Reading grid.");
         boolean[][] qRCodeMatrix;
         try {
-            qRCodeMatrix = getQRCodeMatrix(bitmap, samplingGrid);
+            qRCodeMatrix = getQRCodeMatrix(bitmap, 0, 0, workspace);
         } catch (ArrayIndexOutOfBoundsException e) {
             throw new SymbolNotFoundException("Sampling grid exceeded image boundary");
         }
@@ -208,17 +476,50 @@ public class QRCodeImageReader {
         return new QRCodeSymbol(qRCodeMatrix);
     }
 
+    /**
+     * Returns the centers of the UL, UR and DL finder patterns
+     * of the last symbol read, in image coordinates
+     */
+    public Point[] getFinderPatternCenters() {
+        if (finderPattern == null)
+            throw new IllegalStateException("This method must be called after QRCodeImageReader.getQRCodeSymbol() called");
+        Point[] centers = new Point[3];
+        for (int i = 0; i < centers.length; i++) {
+            Point center = finderPattern.getCenter(i);
+            centers[i] = new Point(regionX + center.getX() * regionScale + (regionScale >> 1),
+                    regionY + center.getY() * regionScale + (regionScale >> 1));
+        }
+        return centers;
+    }
+
+    /**
+     * Samples the last symbol read again with its grid moved by adjust pixels
+     * from where the previous call left it
+     */
     public QRCodeSymbol getQRCodeSymbolWithAdjustedGrid(Point adjust)
             throws IllegalStateException, SymbolNotFoundException {
         if (bitmap == null || samplingGrid == null) {
             throw new IllegalStateException("This method must be called after QRCodeImageReader.getQRCodeSymbol() called");
         }
-        samplingGrid.adjust(adjust);
+        gridAdjustX += adjust.getX();
+        gridAdjustY += adjust.getY();
         canvas.println("Sampling grid adjusted d(" + adjust.getX() + "," + adjust.getY() + ")");
+        return getQRCodeSymbolWithGridOffset(new Point(gridAdjustX, gridAdjustY), workspace);
+    }
 
+    /**
+     * Samples the last symbol read again with its grid moved by offset pixels from where
+     * it was located, into the module matrix of the workspace. Nothing of the reader changes,
+     * so offsets can be sampled at the same time, each into a workspace of its own.
+     */
+    public QRCodeSymbol getQRCodeSymbolWithGridOffset(Point offset, DecoderWorkspace workspace)
+            throws IllegalStateException, SymbolNotFoundException {
+        if (bitmap == null || samplingGrid == null) {
+            throw new IllegalStateException("This method must be called after QRCodeImageReader.getQRCodeSymbol() called");
+        }
         boolean[][] qRCodeMatrix;
         try {
-            qRCodeMatrix = getQRCodeMatrix(bitmap, samplingGrid);
+            qRCodeMatrix = getQRCodeMatrix(bitmap, offset.getX(), offset.getY(), workspace);
         } catch (ArrayIndexOutOfBoundsException e) {
             throw new SymbolNotFoundException("Sampling grid exceeded image boundary");
         }
@@ -244,34 +545,28 @@ public class QRCodeImageReader {
         //--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//--//
         SamplingGrid samplingGrid = new SamplingGrid(sqrtNumArea);
 
-        Line baseLineX, baseLineY, gridLineX, gridLineY;
-
         ///???
         //Point[] targetCenters;
 
         //int logicalDistance = alignmentPattern.getLogicalDistance();
-        Axis axis = new Axis(finderPattern.getAngle(), finderPattern.getModuleSize());
-        ModulePitch modulePitch;
+        Axis axis = new Axis(finderPattern.getAngle(), finderPattern.getModuleSize(), finderPattern.getDecimalPoint());
+        Point[][] logicalCenters = AlignmentPattern.getLogicalCenter(finderPattern);
 
         // for each area :
         for (int ay = 0; ay < sqrtNumArea; ay++) {
             for (int ax = 0; ax < sqrtNumArea; ax++) {
-                modulePitch = new ModulePitch();  /// Housing to order
-                baseLineX = new Line();
-                baseLineY = new Line();
                 axis.setModulePitch(finderPattern.getModuleSize());
 
-                Point[][] logicalCenters = AlignmentPattern.getLogicalCenter(finderPattern);
-
                 Point upperLeftPoint = centers[ax][ay];
                 Point upperRightPoint = centers[ax + 1][ay];
                 Point lowerLeftPoint = centers[ax][ay + 1];
                 Point lowerRightPoint = centers[ax + 1][ay + 1];
 
-                Point logicalUpperLeftPoint = logicalCenters[ax][ay];
-                Point logicalUpperRightPoint = logicalCenters[ax + 1][ay];
-                Point logicalLowerLeftPoint = logicalCenters[ax][ay + 1];
-                Point logicalLowerRightPoint = logicalCenters[ax + 1][ay + 1];
+                // copies, as they are moved to the corners of the area
+                Point logicalUpperLeftPoint = new Point(logicalCenters[ax][ay].getX(), logicalCenters[ax][ay].getY());
+                Point logicalUpperRightPoint = new Point(logicalCenters[ax + 1][ay].getX(), logicalCenters[ax + 1][ay].getY());
+                Point logicalLowerLeftPoint = new Point(logicalCenters[ax][ay + 1].getX(), logicalCenters[ax][ay + 1].getY());
+                Point logicalLowerRightPoint = new Point(logicalCenters[ax + 1][ay + 1].getX(), logicalCenters[ax + 1][ay + 1].getY());
 
                 if (ax == 0 && ay == 0) // left upper corner
                 {
@@ -377,108 +672,49 @@ public class QRCodeImageReader {
                     logicalHeight += 3;
 
                 }
-                modulePitch.top = getAreaModulePitch(upperLeftPoint, upperRightPoint, logicalWidth - 1);
-                modulePitch.left = getAreaModulePitch(upperLeftPoint, lowerLeftPoint, logicalHeight - 1);
-                modulePitch.bottom = getAreaModulePitch(lowerLeftPoint, lowerRightPoint, logicalWidth - 1);
-                modulePitch.right = getAreaModulePitch(upperRightPoint, lowerRightPoint, logicalHeight - 1);
-
-                baseLineX.setP1(upperLeftPoint);
-                baseLineY.setP1(upperLeftPoint);
-                baseLineX.setP2(lowerLeftPoint);
-                baseLineY.setP2(upperRightPoint);
-
-                samplingGrid.initGrid(ax, ay, logicalWidth, logicalHeight);
-
-                for (int i = 0; i < logicalWidth; i++) {
-                    gridLineX = new Line(baseLineX.getP1(), baseLineX.getP2());
-
-                    axis.setOrigin(gridLineX.getP1());
-                    axis.setModulePitch(modulePitch.top);
-                    gridLineX.setP1(axis.translate(i, 0));
-
-                    axis.setOrigin(gridLineX.getP2());
-                    axis.setModulePitch(modulePitch.bottom);
-                    gridLineX.setP2(axis.translate(i, 0));
-
-                    samplingGrid.setXLine(ax, ay, i, gridLineX);
-                }
-
-                for (int i = 0; i < logicalHeight; i++) {
-
-                    gridLineY = new Line(baseLineY.getP1(), baseLineY.getP2());
-
-                    axis.setOrigin(gridLineY.getP1());
-                    axis.setModulePitch(modulePitch.left);
-                    gridLineY.setP1(axis.translate(0, i));
-
-                    axis.setOrigin(gridLineY.getP2());
-                    axis.setModulePitch(modulePitch.right);
-                    gridLineY.setP2(axis.translate(0, i));
-
-                    samplingGrid.setYLine(ax, ay, i, gridLineY);
-
-                }
+                samplingGrid.setArea(ax, ay, logicalWidth, logicalHeight,
+                        upperLeftPoint, upperRightPoint, lowerLeftPoint, lowerRightPoint);
             }
         }
 
         return samplingGrid;
     }
 
-
-    //get module pitch in single area
-    int getAreaModulePitch(Point start, Point end, int logicalDistance) {
-        Line tempLine;
-        tempLine = new Line(start, end);
-        int realDistance = tempLine.getLength();
-        return (realDistance << DECIMAL_POINT) / logicalDistance;
-    }
-
-
-    //gridLines[areaX][areaY][direction(x=0,y=1)][EachLines]
-    boolean[][] getQRCodeMatrix(boolean[][] image, SamplingGrid gridLines) throws ArrayIndexOutOfBoundsException {
-        //int gridSize = gridLines.getWidth() * gridLines.getWidth(0,0);
-        int gridSize = gridLines.getTotalWidth();
-
-// now this is done within the SamplingGrid class...
-//		if (gridLines.getWidth() >= 2)
-//			gridSize-=1;
-
-        canvas.println("gridSize=" + gridSize);
-        //canvas.println("gridLines.getWidth() * gridLines.getWidth(0,0) = "+gridLines.getWidth() * gridLines.getWidth(0,0));
-        Point bottomRightPoint = null;
-        boolean[][] sampledMatrix = new boolean[gridSize][gridSize];
-        for (int ay = 0; ay < gridLines.getHeight(); ay++) {
-            for (int ax = 0; ax < gridLines.getWidth(); ax++) {
-                Vector sampledPoints = new Vector();
-                for (int y = 0; y < gridLines.getHeight(ax, ay); y++) {
-                    for (int x = 0; x < gridLines.getWidth(ax, ay); x++) {
-                        int x1 = gridLines.getXLine(ax, ay, x).getP1().getX();
-                        int y1 = gridLines.getXLine(ax, ay, x).getP1().getY();
-                        int x2 = gridLines.getXLine(ax, ay, x).getP2().getX();
-                        int y2 = gridLines.getXLine(ax, ay, x).getP2().getY();
-                        int x3 = gridLines.getYLine(ax, ay, y).getP1().getX();
-                        int y3 = gridLines.getYLine(ax, ay, y).getP1().getY();
-                        int x4 = gridLines.getYLine(ax, ay, y).getP2().getX();
-                        int y4 = gridLines.getYLine(ax, ay, y).getP2().getY();
-
-                        int e = (y2 - y1) * (x3 - x4) - (y4 - y3) * (x1 - x2);
-                        int f = (x1 * y2 - x2 * y1) * (x3 - x4) - (x3 * y4 - x4 * y3) * (x1 - x2);
-                        int g = (x3 * y4 - x4 * y3) * (y2 - y1) - (x1 * y2 - x2 * y1) * (y4 - y3);
-                        sampledMatrix[gridLines.getX(ax, x)][gridLines.getY(ay, y)] = image[f / e][g / e];
-                        if ((ay == gridLines.getHeight() - 1 && ax == gridLines.getWidth() - 1) &&
-                                y == gridLines.getHeight(ax, ay) - 1 && x == gridLines.getWidth(ax, ay) - 1)
-                            bottomRightPoint = new Point(f / e, g / e);
-                        //calling canvas.drawPoint in loop can be very slow.
-                        // use canvas.drawPoints if you need
-                        //canvas.drawPoint(new Point(f / e,g / e), Color.RED);
+    /**
+     * Samples the module centers of each area of the grid moved by (dx, dy) pixels, walking
+     * its columns through its perspective transform (see {@link SamplingGrid})
+     */
+    boolean[][] getQRCodeMatrix(BitMatrix image, int dx, int dy, DecoderWorkspace workspace)
+            throws ArrayIndexOutOfBoundsException {
+        SamplingGrid grid = samplingGrid;
+        int gridSize = grid.getTotalWidth();
+        boolean[][] sampledMatrix = workspace.getModuleMatrix(gridSize);
+        for (int ay = 0; ay < grid.getHeight(); ay++) {
+            for (int ax = 0; ax < grid.getWidth(); ax++) {
+                double[] t = grid.getTransform(ax, ay);
+                // the move added times the denominator to both numerators
+                double a = t[0] + dx * t[6], b = t[1] + dx * t[7], c = t[2] + dx;
+                double d = t[3] + dy * t[6], e = t[4] + dy * t[7], f = t[5] + dy;
+                int width = grid.getWidth(ax, ay);
+                int height = grid.getHeight(ax, ay);
+                int left = grid.getX(ax, 0);
+                int top = grid.getY(ay, 0);
+                for (int x = 0; x < width; x++) {
+                    // homogeneous coordinates of the first module of the column, then steps down it
+                    double px = a * x + c;
+                    double py = d * x + f;
+                    double pz = t[6] * x + 1;
+                    boolean[] column = sampledMatrix[left + x];
+                    // truncated as the intersections of the former grid lines were
+                    for (int y = 0; y < height; y++) {
+                        column[top + y] = image.get((int) (px / pz), (int) (py / pz));
+                        px += b;
+                        py += e;
+                        pz += t[7];
                     }
                 }
             }
         }
-        if (bottomRightPoint != null && (bottomRightPoint.getX() > image.length - 1 || bottomRightPoint.getY() > image[0].length - 1))
-            throw new ArrayIndexOutOfBoundsException("Sampling grid pointed out of image");
-        canvas.drawPoint(bottomRightPoint, Color.BLUE);
-
         return sampledMatrix;
     }
 }
@@ -0,0 +1,139 @@
+package jp.sourceforge.qrcode.reader;
+
+import jp.sourceforge.qrcode.data.BitMatrix;
+import jp.sourceforge.qrcode.data.DecoderWorkspace;
+import jp.sourceforge.qrcode.data.LuminancePlane;
+import jp.sourceforge.qrcode.data.QRCodeImage;
+
+import java.util.Arrays;
+
+/**
+ * Binarizes an image with a local threshold per pixel, computed over a square
+ * window around it as in Sauvola's method:
+ * <pre>
+ *   threshold = mean * (1 + k * (deviation / 128 - 1))
+ * </pre>
+ * With k = 0 the threshold is the local mean.
+ * <p>
+ * The window sums come from integral images of the luminance and of its square,
+ * built in the same pass that converts the rows, so every pixel costs the same
+ * whatever the window size. The rows of a plane lying in a direct buffer are
+ * read from it in place, once per pass.
+ * The integral images are kept in ints of the workspace: window sums are taken modulo 2^32,
+ * which is exact as long as the window is at most {@link #MAX_RADIUS} pixels
+ * from the center in each direction.
+ */
+public class SauvolaBinarizer implements Binarizer {
+    public static final int MAX_RADIUS = 127;
+
+    final int radius;
+    final double k;
+
+    LuminancePlane luminance;
+
+    /**
+     * Creates a Sauvola binarizer whose window grows with the image
+     */
+    public SauvolaBinarizer() {
+        this(0, 0.2);
+    }
+
+    /**
+     * @param radius distance from the center to the edge of the window,
+     *               0 to derive it from the image size
+     * @param k      sensitivity to the local deviation, 0 for a plain local mean
+     */
+    public SauvolaBinarizer(int radius, double k) {
+        if (radius < 0 || radius > MAX_RADIUS)
+            throw new IllegalArgumentException("Window radius must be between 0 and " + MAX_RADIUS);
+        this.radius = radius;
+        this.k = k;
+    }
+
+    @Override
+    public BitMatrix binarize(QRCodeImage image, DecoderWorkspace workspace) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int r = radius > 0 ? radius : Math.min(MAX_RADIUS, Math.max(8, Math.min(width, height) / 16));
+        luminance = LuminancePlane.wrap(image);
+        boolean convert = luminance == null;
+        if (convert)
+            luminance = workspace.getPlane(0, width, height);
+        byte[] data = luminance.getData();
+        // the row being read, when the plane has no array
+        byte[] source = data != null ? data : new byte[width];
+        int stride = luminance.getStride();
+        int offset = luminance.getOffset();
+
+        int integralWidth = width + 1;
+        int integralSize = integralWidth * (height + 1);
+        int[] integral = workspace.getInts(0, integralSize);
+        int[] squareIntegral = workspace.getInts(1, integralSize);
+        for (int x = 0; x < integralWidth; x++) {
+            integral[x] = 0;
+            squareIntegral[x] = 0;
+        }
+        for (int y = 0; y < height; y++) {
+            int row = offset + y * stride;
+            if (convert)
+                image.getLuminance(0, y, width, data, row);
+            else if (data == null) {
+                luminance.getLuminance(0, y, width, source, 0);
+                row = 0;
+            }
+            int above = y * integralWidth;
+            int current = above + integralWidth;
+            int sum = 0;
+            int squareSum = 0;
+            integral[current] = 0;
+            squareIntegral[current] = 0;
+            for (int x = 0; x < width; x++) {
+                int target = source[row + x] & 0xFF;
+                sum += target;
+                squareSum += target * target;
+                integral[current + x + 1] = integral[above + x + 1] + sum;
+                squareIntegral[current + x + 1] = squareIntegral[above + x + 1] + squareSum;
+            }
+        }
+
+        BitMatrix bitmap = workspace.getBitMatrix(width, height);
+        long[] words = workspace.getWords(0, bitmap.getRowSize());
+        for (int y = 0; y < height; y++) {
+            int row = offset + y * stride;
+            if (data == null) {
+                luminance.getLuminance(0, y, width, source, 0);
+                row = 0;
+            }
+            int top = Math.max(0, y - r) * integralWidth;
+            int bottom = Math.min(height, y + r + 1) * integralWidth;
+            int windowHeight = (bottom - top) / integralWidth;
+            Arrays.fill(words, 0L);
+            for (int x = 0; x < width; x++) {
+                int left = Math.max(0, x - r);
+                int right = Math.min(width, x + r + 1);
+                int count = (right - left) * windowHeight;
+                int sum = integral[bottom + right] - integral[bottom + left] - integral[top + right] + integral[top + left];
+                double mean = (double) sum / count;
+                double threshold;
+                if (k == 0) {
+                    threshold = mean;
+                } else {
+                    long squareSum = (squareIntegral[bottom + right] - squareIntegral[bottom + left] -
+                            squareIntegral[top + right] + squareIntegral[top + left]) & 0xFFFFFFFFL;
+                    double variance = (double) squareSum / count - mean * mean;
+                    double deviation = variance > 0 ? Math.sqrt(variance) : 0;
+                    threshold = mean * (1 + k * (deviation / 128 - 1));
+                }
+                if ((source[row + x] & 0xFF) < threshold)
+                    words[x >> 6] |= 1L << x;
+            }
+            bitmap.setRow(y, words);
+        }
+        return bitmap;
+    }
+
+    @Override
+    public LuminancePlane getLuminance() {
+        return luminance;
+    }
+}
@@ -1,5 +1,6 @@
 package jp.sourceforge.qrcode.util;
 
+import jp.sourceforge.qrcode.data.BitMatrix;
 import jp.sourceforge.qrcode.geom.Line;
 import jp.sourceforge.qrcode.geom.Point;
 
@@ -25,6 +26,6 @@ public interface DebugCanvas {
 
     public void drawPolygon(Point[] points, int color);
 
-    public void drawMatrix(boolean[][] matrix);
+    public void drawMatrix(BitMatrix matrix);
 }
 
@@ -1,5 +1,6 @@
 package jp.sourceforge.qrcode.util;
 
+import jp.sourceforge.qrcode.data.BitMatrix;
 import jp.sourceforge.qrcode.geom.Line;
 import jp.sourceforge.qrcode.geom.Point;
 
@@ -44,7 +45,7 @@ public class DebugCanvasAdapter implements DebugCanvas {
     public void drawPolygon(Point[] points, int color) {
     }
 
-    public void drawMatrix(boolean[][] matrix) {
+    public void drawMatrix(BitMatrix matrix) {
     }
 }
 
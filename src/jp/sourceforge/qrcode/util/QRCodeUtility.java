@@ -1,6 +1,29 @@
 package jp.sourceforge.qrcode.util;
 
 public class QRCodeUtility {
+    // x / 100 == (x * 5243) >>> 19 for every x up to 43698, beyond the largest weighted sum 25500
+    static final int DIVIDE_BY_100_MULTIPLIER = 5243;
+    static final int DIVIDE_BY_100_SHIFT = 19;
+
+    /**
+     * True when the bulk operations run on the Vector API.
+     * The jdk.incubator.vector module must be added to the boot layer
+     * ({@code --add-modules jdk.incubator.vector}); setting the system property
+     * qrcode.vector to false forces the scalar code.
+     */
+    public static final boolean VECTORIZED = initVectorized();
+
+    static boolean initVectorized() {
+        if (!Boolean.parseBoolean(System.getProperty("qrcode.vector", "true")) ||
+                !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+            return false;
+        try {
+            return VectorUtility.INT_SPECIES.length() > 1;
+        } catch (LinkageError | RuntimeException e) {
+            // no usable vector shape on this platform
+            return false;
+        }
+    }
 
     public static int sqrt(int val) {
         try {
@@ -11,6 +34,46 @@ public class QRCodeUtility {
         }
     }
 
+    /**
+     * Returns the 8 bit luminance of a 0xRRGGBB pixel
+     */
+    public static int luminance(int rgb) {
+        return luminance(rgb >> 16 & 0xFF, rgb >> 8 & 0xFF, rgb & 0xFF);
+    }
+
+    public static int luminance(int r, int g, int b) {
+        return (r * 30 + g * 59 + b * 11) * DIVIDE_BY_100_MULTIPLIER >>> DIVIDE_BY_100_SHIFT;
+    }
+
+    /**
+     * Converts length 0xRRGGBB pixels starting at pixels[from] to luminance
+     * stored from luminance[offset]
+     */
+    public static void luminance(int[] pixels, int from, byte[] luminance, int offset, int length) {
+        if (VECTORIZED) {
+            VectorUtility.luminance(pixels, from, luminance, offset, length);
+            return;
+        }
+        for (int i = 0; i < length; i++)
+            luminance[offset + i] = (byte) luminance(pixels[from + i]);
+    }
+
+    /**
+     * Sets bit x + i of the packed row words for each luminance[from + i]
+     * darker than threshold, i going from 0 to length - 1
+     */
+    public static void threshold(byte[] luminance, int from, int length, int threshold, long[] words, int x) {
+        // the vector compare works on unsigned bytes, so thresholds above 255 stay scalar
+        if (VECTORIZED && threshold <= 0xFF) {
+            VectorUtility.threshold(luminance, from, length, threshold, words, x);
+            return;
+        }
+        for (int i = 0; i < length; i++, x++) {
+            if ((luminance[from + i] & 0xFF) < threshold)
+                words[x >> 6] |= 1L << x;
+        }
+    }
+
     private static int originalSqrt(int val) {
         int temp, g = 0, b = 0x8000, bshft = 15;
         do {
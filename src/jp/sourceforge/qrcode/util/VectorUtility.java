@@ -0,0 +1,70 @@
+package jp.sourceforge.qrcode.util;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vectorized versions of the bulk operations of {@link QRCodeUtility}.
+ * <p>
+ * This is the only class referring to the incubating jdk.incubator.vector module.
+ * It is loaded only when the module was added with
+ * {@code --add-modules jdk.incubator.vector}, so the library still runs without it.
+ * Both paths produce the same results.
+ */
+final class VectorUtility {
+    static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+    // at least one byte lane per int lane, so converting a vector of luminances keeps every lane,
+    // and no shape under 64 bits, the smallest there is (four int lanes of 128 bit hardware)
+    static final VectorSpecies<Byte> LUMINANCE_SPECIES =
+            VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, INT_SPECIES.length() * 8)));
+    // the byte lanes holding the converted int lanes
+    static final VectorMask<Byte> LUMINANCE_MASK = LUMINANCE_SPECIES.indexInRange(0, INT_SPECIES.length());
+    static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED.length() > 64 ?
+            ByteVector.SPECIES_512 : ByteVector.SPECIES_PREFERRED;
+
+    private VectorUtility() {
+    }
+
+    static void luminance(int[] pixels, int from, byte[] luminance, int offset, int length) {
+        int i = 0;
+        for (int bound = INT_SPECIES.loopBound(length); i < bound; i += INT_SPECIES.length()) {
+            IntVector rgb = IntVector.fromArray(INT_SPECIES, pixels, from + i);
+            IntVector r = rgb.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+            IntVector g = rgb.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+            IntVector b = rgb.and(0xFF);
+            IntVector sum = r.mul(30).add(g.mul(59)).add(b.mul(11));
+            sum.mul(QRCodeUtility.DIVIDE_BY_100_MULTIPLIER)
+                    .lanewise(VectorOperators.LSHR, QRCodeUtility.DIVIDE_BY_100_SHIFT)
+                    .convertShape(VectorOperators.I2B, LUMINANCE_SPECIES, 0)
+                    .reinterpretAsBytes()
+                    .intoArray(luminance, offset + i, LUMINANCE_MASK);
+        }
+        for (; i < length; i++)
+            luminance[offset + i] = (byte) QRCodeUtility.luminance(pixels[from + i]);
+    }
+
+    static void threshold(byte[] luminance, int from, int length, int threshold, long[] words, int x) {
+        int lanes = BYTE_SPECIES.length();
+        byte limit = (byte) threshold;
+        int i = 0;
+        for (int bound = BYTE_SPECIES.loopBound(length); i < bound; i += lanes, x += lanes) {
+            VectorMask<Byte> dark = ByteVector.fromArray(BYTE_SPECIES, luminance, from + i)
+                    .compare(VectorOperators.UNSIGNED_LT, limit);
+            long bits = dark.toLong();
+            if (bits == 0)
+                continue;
+            int shift = x & 63;
+            words[x >> 6] |= bits << shift;
+            if (shift + lanes > 64)
+                words[(x >> 6) + 1] |= bits >>> (64 - shift);
+        }
+        for (; i < length; i++, x++) {
+            if ((luminance[from + i] & 0xFF) < threshold)
+                words[x >> 6] |= 1L << x;
+        }
+    }
+}